@@ -0,0 +1,58 @@
+#!/bin/sh
+# Compares the startup of the command line script as plain JVM launch, with an AppCDS archive,
+# with an AppCDS archive and the C1 compiler only (-XX:TieredStopAtLevel=1), and as native executable
+# (if native-image is on the path). Only the last JVM variant changes the JIT settings, so that
+# the effects of the archive and of the compiler can be told apart.
+#
+# Usage: OKAPI_TOKEN=... scripts/startup-benchmark.sh json.jar okapi_base_url tenant path [runs]
+#
+# Each variant sends the same GET request; the token is taken from OKAPI_TOKEN, so that
+# no prompt interferes with the measurement. Uses hyperfine if available.
+
+set -e
+JSON_JAR=$1
+URL=$2
+TENANT=$3
+REQUEST_PATH=$4
+RUNS=${5:-20}
+if [ -z "$REQUEST_PATH" ] || [ -z "$OKAPI_TOKEN" ]; then
+	echo "Usage: OKAPI_TOKEN=... $0 json.jar okapi_base_url tenant path [runs]" >&2
+	exit 2
+fi
+
+BUILD=build/benchmark
+MAIN=de.fau.ub.folio.connection.OkapiConnection
+rm -rf $BUILD && mkdir -p $BUILD/classes
+javac -encoding UTF-8 -cp "$JSON_JAR" -d $BUILD/classes $(find src -name '*.java')
+cp -r src/META-INF $BUILD/classes/
+# AppCDS archives classes from jar files only
+jar cf $BUILD/okapi-connection.jar -C $BUILD/classes .
+CP="$BUILD/okapi-connection.jar:$JSON_JAR"
+ARGS="$URL $TENANT $REQUEST_PATH GET"
+
+# the archive is dumped at the end of a training run
+java -Djava.awt.headless=true -XX:ArchiveClassesAtExit=$BUILD/okapi.jsa -cp "$CP" $MAIN $ARGS > /dev/null
+
+set -- "java -Djava.awt.headless=true -cp $CP $MAIN $ARGS" \
+       "java -Djava.awt.headless=true -XX:SharedArchiveFile=$BUILD/okapi.jsa -cp $CP $MAIN $ARGS" \
+       "java -Djava.awt.headless=true -XX:SharedArchiveFile=$BUILD/okapi.jsa -XX:TieredStopAtLevel=1 -cp $CP $MAIN $ARGS"
+if command -v native-image > /dev/null; then
+	native-image -cp "$CP" -o $BUILD/okapi $MAIN
+	set -- "$@" "$BUILD/okapi $ARGS"
+fi
+
+if command -v hyperfine > /dev/null; then
+	hyperfine --warmup 2 --runs "$RUNS" "$@"
+	exit 0
+fi
+
+for command in "$@"; do
+	start=$(date +%s%N)
+	i=0
+	while [ $i -lt "$RUNS" ]; do
+		$command > /dev/null
+		i=$((i + 1))
+	done
+	end=$(date +%s%N)
+	echo "$(( (end - start) / RUNS / 1000000 )) ms per run: $command"
+done
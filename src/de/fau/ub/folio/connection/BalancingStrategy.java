@@ -0,0 +1,16 @@
+package de.fau.ub.folio.connection;
+
+/**Strategies for selecting one of several Okapi gateway nodes of an {@code OkapiConnection}.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public enum BalancingStrategy {
+	
+	/** Select the node with the least requests in flight. */
+	LEAST_OUTSTANDING,
+	
+	/** Select the node with the lowest recent latency, weighted by the requests in flight. */
+	LATENCY_WEIGHTED
+	
+}
@@ -0,0 +1,27 @@
+package de.fau.ub.folio.connection;
+
+/**Receives the progress of a bulk operation, 
+ * @see OkapiConnection#deleteByQuery(String, String, String, int, BulkListener)
+ * @see OkapiConnection#updateByQuery(String, String, String, java.util.function.UnaryOperator, int, BulkListener)
+ * 
+ * The methods are called from the threads of the operation and must be thread-safe.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public interface BulkListener {
+
+	/** Is called after each page of matching records has been dispatched and once at the end.
+	 * 
+	 * @param result the counts so far
+	 */
+	public void progress(BulkResult result);
+	
+	/** Is called for each record that could not be deleted or updated.
+	 * 
+	 * @param id the id of the record
+	 * @param e the cause; a {@code ConnectionException} or an exception thrown by the modifier
+	 */
+	public void failed(String id, Exception e);
+	
+}
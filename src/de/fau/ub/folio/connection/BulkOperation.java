@@ -0,0 +1,206 @@
+package de.fau.ub.folio.connection;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.OkapiConnection.Response;
+
+/**Deletes or updates the records matching a CQL query.
+ *
+ * The matching records are fetched page by page with a {@code CqlPager}, and the deletes or updates
+ * are sent by a fixed number of threads. Paging waits while a few pages worth of records are still
+ * pending, so memory use does not depend on the number of matching records.
+ *
+ * An update sends the record back with the {@code _version} it was fetched with. If Okapi
+ * answers with 409 Conflict, the record has been changed in the meantime, so it is fetched again,
+ * the modifier is applied again and the update is retried.
+ *
+ * All requests are sent with {@code RequestPriority.BULK}.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+class BulkOperation {
+
+	private static final int PAGE_SIZE = 200;
+	private static final int MAX_CONFLICT_RETRIES = 5;
+
+	private final OkapiConnection okapi;
+	private final String path;
+	private final String collectionKey;
+	private final String query;
+	private final UnaryOperator<JSONObject> modifier;
+	private final int parallelism;
+	private final BulkListener listener;
+	private final Logger logger;
+	private final BulkResult result = new BulkResult();
+
+	/** Creates an operation.
+	 *
+	 * @param modifier the modifier for an update; null for a delete
+	 */
+	BulkOperation(OkapiConnection okapi, String path, String collectionKey, String query, UnaryOperator<JSONObject> modifier, int parallelism, BulkListener listener) {
+		if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+		this.okapi = okapi;
+		this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+		this.collectionKey = collectionKey;
+		this.query = query;
+		this.modifier = modifier;
+		this.parallelism = parallelism;
+		this.listener = listener;
+		this.logger = System.getLogger(this.getClass().getCanonicalName());
+	}
+
+	/** Runs the operation and waits until all matching records have been processed.
+	 *
+	 * @return the counts
+	 * @throws ConnectionException if the matching records cannot be fetched
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	BulkResult run() throws ConnectionException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+			Thread t = new Thread(() -> {
+				OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+				r.run();
+			}, "okapi-bulk-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		// bounds the records that have been fetched but not processed yet
+		Semaphore permits = new Semaphore(Math.max(parallelism * 4, PAGE_SIZE));
+		// paging happens in the caller's thread, which gets its priority back afterwards
+		RequestPriority callerPriority = OkapiConnection.getCurrentPriority();
+		OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+		try {
+			CqlPager pager = new CqlPager(okapi, path, collectionKey, query, PAGE_SIZE);
+			Response page;
+			while ((page = pager.next()) != null) {
+				if (modifier == null) {
+					// we only need the ids, so we don't parse the records
+					List<String> ids = new ArrayList<>(PAGE_SIZE);
+					RecordIdScanner.scan(page.body(), collectionKey, (buffer, offset, length) ->
+						ids.add(new String(buffer, offset, length, StandardCharsets.UTF_8)));
+					for (String id : ids) {
+						permits.acquire();
+						result.matched.incrementAndGet();
+						executor.execute(() -> {
+							try {
+								delete(id);
+							} finally {
+								permits.release();
+							}
+						});
+					}
+				}
+				else {
+					JSONArray records = page.toJson().getJSONArray(collectionKey);
+					for (int i = 0; i < records.length(); i++) {
+						JSONObject record = records.getJSONObject(i);
+						permits.acquire();
+						result.matched.incrementAndGet();
+						executor.execute(() -> {
+							try {
+								update(record);
+							} finally {
+								permits.release();
+							}
+						});
+					}
+				}
+				if (listener != null) listener.progress(result);
+			}
+		} finally {
+			OkapiConnection.setCurrentPriority(callerPriority);
+			// even if paging failed, the records already dispatched are processed
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		if (listener != null) listener.progress(result);
+		return result;
+	}
+
+	private void delete(String id) {
+		try {
+			if (okapi.delete(path + '/' + id, null, null) == null) {
+				failed(id, new ConnectionException("access denied for path " + path + '/' + id, 403));
+			}
+			else {
+				result.succeeded.incrementAndGet();
+			}
+		} catch (ConnectionException e) {
+			if (e.getHttpCode() == 404) {
+				// somebody else was faster
+				result.skipped.incrementAndGet();
+			}
+			else {
+				failed(id, e);
+			}
+		} catch (RuntimeException e) {
+			failed(id, e);
+		}
+	}
+
+	private void update(JSONObject record) {
+		String id = record.optString("id");
+		String recordPath = path + '/' + id;
+		try {
+			for (int attempt = 0; ; attempt++) {
+				JSONObject modified = modifier.apply(record);
+				if (modified == null) {
+					result.skipped.incrementAndGet();
+					return;
+				}
+				try {
+					if (okapi.put(recordPath, OkapiConnection.JSON_MIMETYPE, null, modified.toString().getBytes(StandardCharsets.UTF_8)) == null) {
+						failed(id, new ConnectionException("access denied for path " + recordPath, 403));
+					}
+					else {
+						result.succeeded.incrementAndGet();
+					}
+					return;
+				} catch (ConnectionException e) {
+					if (e.getHttpCode() != 409 || attempt == MAX_CONFLICT_RETRIES) throw e;
+				}
+				// optimistic locking conflict: somebody else changed the record, so we start over from the current version
+				result.conflicts.incrementAndGet();
+				record = okapi.getJSON(recordPath, null, null);
+				if (record == null) {
+					failed(id, new ConnectionException("access denied for path " + recordPath, 403));
+					return;
+				}
+			}
+		} catch (ConnectionException e) {
+			if (e.getHttpCode() == 404) {
+				// the record has been deleted in the meantime
+				result.skipped.incrementAndGet();
+			}
+			else {
+				failed(id, e);
+			}
+		} catch (RuntimeException e) {
+			failed(id, e);
+		}
+	}
+
+	private void failed(String id, Exception e) {
+		result.failed.incrementAndGet();
+		if (listener != null) {
+			listener.failed(id, e);
+		}
+		else {
+			logger.log(Level.WARNING, "bulk operation failed for record " + id + " at " + path, e);
+		}
+	}
+
+}
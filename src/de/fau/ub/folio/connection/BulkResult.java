@@ -0,0 +1,66 @@
+package de.fau.ub.folio.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**The counts of a bulk operation.
+ * 
+ * While the operation runs, the counts are updated concurrently.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class BulkResult {
+
+	final AtomicLong matched = new AtomicLong();
+	final AtomicLong succeeded = new AtomicLong();
+	final AtomicLong skipped = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong conflicts = new AtomicLong();
+	
+	BulkResult() {
+		super();
+	}
+	
+	/** Returns the number of records that matched the query so far.
+	 */
+	public long matched() {
+		return matched.get();
+	}
+
+	/** Returns the number of records that have been deleted or updated.
+	 */
+	public long succeeded() {
+		return succeeded.get();
+	}
+
+	/** Returns the number of records the modifier left unchanged or that vanished in the meantime.
+	 */
+	public long skipped() {
+		return skipped.get();
+	}
+
+	/** Returns the number of records that could not be deleted or updated.
+	 */
+	public long failed() {
+		return failed.get();
+	}
+
+	/** Returns the number of version conflicts that were resolved by fetching the record again.
+	 */
+	public long conflicts() {
+		return conflicts.get();
+	}
+	
+	/** Returns the number of records that are still being processed.
+	 */
+	public long pending() {
+		return matched() - succeeded() - skipped() - failed();
+	}
+
+	@Override
+	public String toString() {
+		return "matched " + matched() + ", succeeded " + succeeded() + ", skipped " + skipped() 
+			+ ", failed " + failed() + ", conflicts " + conflicts();
+	}
+	
+}
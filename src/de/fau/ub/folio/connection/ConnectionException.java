@@ -9,6 +9,8 @@ import java.io.IOException;
 public class ConnectionException extends IOException {
 
 	private static final long serialVersionUID = 3461620836994578126L;
+	
+	private int httpCode = -1;
 
 	public ConnectionException() {
 		// TODO Auto-generated constructor stub
@@ -29,4 +31,17 @@ public class ConnectionException extends IOException {
 		// TODO Auto-generated constructor stub
 	}
 
+	public ConnectionException(String message, int httpCode) {
+		super(message);
+		this.httpCode = httpCode;
+	}
+
+	/** Returns the HTTP code of the response that made the request fail.
+	 * 
+	 * @return the HTTP code or -1 if the request failed without a response
+	 */
+	public int getHttpCode() {
+		return httpCode;
+	}
+
 }
@@ -0,0 +1,96 @@
+package de.fau.ub.folio.connection;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.fau.ub.folio.connection.OkapiConnection.Response;
+
+/**Pages through the records of a collection endpoint that supports CQL queries.
+ *
+ * Instead of offsets, the pager uses the id of the last record of a page to request the next one:
+ * <code>(query) and id &gt; "lastId" sortBy id</code>. Unlike offset paging, this does not
+ * get slower with each page and is stable while records are added or deleted.
+ *
+ * Example:
+ * <pre>
+ * CqlPager pager = new CqlPager(okapi, "holdings-storage/holdings", "holdingsRecords", "permanentLocationId==abc", 500);
+ * Response page;
+ * while ((page = pager.next()) != null) {
+ *     JSONArray records = page.toJson().getJSONArray("holdingsRecords");
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class CqlPager {
+
+	private final OkapiConnection okapi;
+	private final String path;
+	private final String collectionKey;
+	private final String query;
+	private final int pageSize;
+	private String lastId = null;
+	private boolean done = false;
+	private long recordsSeen = 0;
+
+	/** Creates a pager.
+	 *
+	 * @param okapi the connection
+	 * @param path the path of the collection endpoint, e.g. "instance-storage/instances"
+	 * @param collectionKey the key of the record array in the response, e.g. "instances"
+	 * @param query a CQL query without sort clause; null for all records
+	 * @param pageSize the number of records per page
+	 */
+	public CqlPager(OkapiConnection okapi, String path, String collectionKey, String query, int pageSize) {
+		super();
+		if (pageSize < 1) throw new IllegalArgumentException("page size must be positive");
+		if (query != null && query.toLowerCase().contains("sortby")) throw new IllegalArgumentException("query must not be sorted, the pager sorts by id");
+		this.okapi = okapi;
+		this.path = path;
+		this.collectionKey = collectionKey;
+		this.query = query == null || query.isBlank() ? null : query;
+		this.pageSize = pageSize;
+	}
+
+	/** Fetches the next page.
+	 *
+	 * @return the response for the next page or null if there are no more records
+	 * @throws ConnectionException if the request failed
+	 */
+	public Response next() throws ConnectionException {
+		if (done) return null;
+		StringBuilder cql = new StringBuilder();
+		if (query != null) cql.append('(').append(query).append(')');
+		if (lastId != null) {
+			if (query != null) cql.append(" and ");
+			cql.append("id > \"").append(lastId).append('"');
+		}
+		if (cql.length() == 0) cql.append("cql.allRecords=1");
+		cql.append(" sortBy id");
+		Map<String, String> parameters = new LinkedHashMap<>();
+		parameters.put("query", cql.toString());
+		parameters.put("limit", Integer.toString(pageSize));
+		Response response = okapi.get(path, parameters, null);
+		if (response == null) throw new ConnectionException("access denied for path " + path, 403);
+		String[] last = new String[1];
+		int count = RecordIdScanner.scan(response.body(), collectionKey, (buffer, offset, length) -> {
+			last[0] = new String(buffer, offset, length, StandardCharsets.UTF_8);
+		});
+		recordsSeen += count;
+		if (count < pageSize || last[0] == null) done = true;
+		lastId = last[0];
+		return count == 0 ? null : response;
+	}
+
+	/** Returns the number of records fetched so far.
+	 *
+	 * @return the number of records
+	 */
+	public long recordsSeen() {
+		return recordsSeen;
+	}
+
+}
@@ -0,0 +1,109 @@
+package de.fau.ub.folio.connection;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**Decides when a GET request to Okapi is hedged, ie. when a second attempt
+ * for a request is sent that has not been answered yet.
+ * 
+ * A request is hedged if it has not been answered after a delay that is
+ * a given percentile of the latencies recently observed. 
+ * In order to limit the additional load on Okapi, hedging has a budget: 
+ * the number of hedged requests never exceeds the given percentage of all requests
+ * (plus a small burst allowance).
+ * 
+ * Instances are thread-safe and are typically shared by all requests of an
+ * {@code OkapiConnection}, @see {@code OkapiConnection.setHedgingPolicy()}.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class HedgingPolicy {
+
+	private static final int WINDOW_SIZE = 1000;
+	private static final int MIN_SAMPLES = 20;
+	private static final int RECALCULATE_EVERY = 50;
+	private static final double MAX_BURST = 10;
+	
+	private double percentile;
+	private double budget;
+	private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(5);
+	
+	private long[] latencies = new long[WINDOW_SIZE];
+	private int samples = 0;
+	private int next = 0;
+	private long delayNanos = -1;
+	private int recordedSinceCalculation = 0;
+	private double credits = 0;
+	
+	
+	/**Creates a policy that hedges requests after the 95th percentile of recent
+	 * latencies with a budget of 5% extra requests.
+	 */
+	public HedgingPolicy() {
+		this(0.95, 5);
+	}
+	
+	/**Creates a hedging policy.
+	 * 
+	 * @param percentile the percentile of recent latencies after which a request is hedged, 
+	 * 		  e.g. 0.95
+	 * @param maxExtraLoadPercent the maximum percentage of requests that may be hedged
+	 */
+	public HedgingPolicy(double percentile, double maxExtraLoadPercent) {
+		super();
+		if (percentile <= 0 || percentile >= 1) throw new IllegalArgumentException("percentile must be between 0 and 1");
+		if (maxExtraLoadPercent < 0) throw new IllegalArgumentException("extra load must not be negative");
+		this.percentile = percentile;
+		this.budget = maxExtraLoadPercent / 100;
+	}
+	
+	/**Sets the lower bound for the hedging delay.
+	 * 
+	 * @param minDelay the minimum delay in milliseconds; defaults to 5
+	 */
+	public void setMinDelay(long minDelay) {
+		this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelay);
+	}
+	
+	/**Registers a new request and returns the delay after which it may be hedged.
+	 * 
+	 * Each request earns a share of a hedge according to the budget.
+	 * 
+	 * @return the delay in nanoseconds or -1 if there are not yet enough samples 
+	 * 		   to calculate a delay
+	 */
+	synchronized long beginRequest() {
+		credits = Math.min(credits + budget, MAX_BURST);
+		return delayNanos;
+	}
+	
+	/**Tries to take a hedge from the budget.
+	 * 
+	 * @return true if the request may be hedged
+	 */
+	synchronized boolean tryAcquireHedge() {
+		if (credits < 1) return false;
+		credits--;
+		return true;
+	}
+	
+	/**Records the latency of a successful attempt.
+	 * 
+	 * @param nanos the latency in nanoseconds
+	 */
+	synchronized void recordLatency(long nanos) {
+		latencies[next] = nanos;
+		next = (next + 1) % WINDOW_SIZE;
+		if (samples < WINDOW_SIZE) samples++;
+		// sorting the window for each request would be a waste,
+		// so we recalculate the delay every now and then
+		if (samples >= MIN_SAMPLES && (delayNanos < 0 || ++recordedSinceCalculation >= RECALCULATE_EVERY)) {
+			long[] sorted = Arrays.copyOf(latencies, samples);
+			Arrays.sort(sorted);
+			delayNanos = Math.max(minDelayNanos, sorted[(int) Math.ceil(percentile * samples) - 1]);
+			recordedSinceCalculation = 0;
+		}
+	}
+	
+}
@@ -0,0 +1,85 @@
+package de.fau.ub.folio.connection;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**Queue depth and wait times of the requests of one priority, @see {@code PriorityScheduler}.
+ * 
+ * The wait time percentiles refer to the most recent 1024 requests.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class LaneMetrics {
+
+	private static final int WINDOW = 1024;
+	
+	private final RequestPriority priority;
+	volatile int queueDepth = 0;
+	volatile int inFlight = 0;
+	private long granted = 0;
+	private long maxWait = 0;
+	private final long[] waits = new long[WINDOW];
+	
+	LaneMetrics(RequestPriority priority) {
+		this.priority = priority;
+	}
+	
+	synchronized void recordWait(long nanos) {
+		waits[(int) (granted % WINDOW)] = nanos;
+		granted++;
+		if (nanos > maxWait) maxWait = nanos;
+	}
+	
+	public RequestPriority priority() {
+		return priority;
+	}
+	
+	/** Returns the number of requests waiting for a slot.
+	 */
+	public int queueDepth() {
+		return queueDepth;
+	}
+	
+	/** Returns the number of requests being sent.
+	 */
+	public int inFlight() {
+		return inFlight;
+	}
+	
+	/** Returns the number of requests that got a slot so far.
+	 */
+	public synchronized long granted() {
+		return granted;
+	}
+	
+	/** Returns the longest wait so far.
+	 */
+	public synchronized Duration maxWait() {
+		return Duration.ofNanos(maxWait);
+	}
+	
+	/** Returns a percentile of the recent wait times.
+	 * 
+	 * @param percentile the percentile between 0 and 1, e.g. 0.99
+	 * @return the wait time; zero if there were no requests
+	 */
+	public Duration waitPercentile(double percentile) {
+		long[] sorted;
+		synchronized (this) {
+			sorted = Arrays.copyOf(waits, (int) Math.min(granted, WINDOW));
+		}
+		if (sorted.length == 0) return Duration.ZERO;
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return Duration.ofNanos(sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: queue depth %d, in flight %d, granted %d, wait p50 %.1f ms, p99 %.1f ms, max %.1f ms", 
+				priority, queueDepth, inFlight, granted(), waitPercentile(0.5).toNanos() / 1e6, 
+				waitPercentile(0.99).toNanos() / 1e6, maxWait().toNanos() / 1e6);
+	}
+	
+}
@@ -0,0 +1,175 @@
+package de.fau.ub.folio.connection;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Distributes the requests of an {@code OkapiConnection} over several Okapi gateway nodes.
+ * 
+ * Nodes that fail repeatedly are ejected from the selection. Ejected nodes are
+ * probed in the background using Okapi's health endpoint and are taken back
+ * as soon as they respond again. If all nodes are ejected, all are considered
+ * for selection so that requests are not refused by the client.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+class NodeBalancer {
+
+	static final String URL_HEALTH = "_/proxy/health";
+	private static final int FAILURES_BEFORE_EJECTION = 3;
+	private static final long PROBE_INTERVAL_SECONDS = 5;
+	private static final int PROBE_TIMEOUT_MILLIS = 2000;
+	/** weight of a new latency sample in the moving average */
+	private static final double EWMA_ALPHA = 0.2;
+	
+	/** An Okapi gateway node and its statistics.
+	 */
+	static class Node {
+		private final URI uri;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private volatile double latencyNanos = 0;
+		private volatile boolean ejected = false;
+		private int consecutiveFailures = 0;
+		
+		private Node(URI uri) {
+			this.uri = uri;
+		}
+		
+		URI uri() {
+			return uri;
+		}
+	}
+	
+	private final List<Node> nodes;
+	private final BalancingStrategy strategy;
+	private final Logger logger;
+	private ScheduledExecutorService prober = null;
+	
+	NodeBalancer(List<URI> uris, BalancingStrategy strategy, Logger logger) {
+		if (uris == null || uris.isEmpty()) throw new IllegalArgumentException("at least one Okapi URI must be given");
+		List<Node> nodes = new ArrayList<>(uris.size());
+		for (URI uri : uris) {
+			nodes.add(new Node(uri));
+		}
+		this.nodes = List.copyOf(nodes);
+		this.strategy = strategy != null ? strategy : BalancingStrategy.LEAST_OUTSTANDING;
+		this.logger = logger;
+	}
+	
+	int size() {
+		return nodes.size();
+	}
+	
+	/** Returns the base URIs of all nodes, including ejected ones.
+	 */
+	List<URI> uris() {
+		List<URI> uris = new ArrayList<>(nodes.size());
+		for (Node node : nodes) {
+			uris.add(node.uri);
+		}
+		return uris;
+	}
+	
+	/** Selects a node for a request and counts the request as outstanding.
+	 * The caller must call {@code release()} when the request is finished.
+	 * 
+	 * @param exclude a node that should not be selected if there are alternatives, may be null
+	 * @return the node
+	 */
+	Node acquire(Node exclude) {
+		Node best = null;
+		if (nodes.size() == 1) {
+			best = nodes.get(0);
+		}
+		else {
+			double bestScore = Double.MAX_VALUE;
+			boolean allEjected = nodes.stream().allMatch(n -> n.ejected || n == exclude);
+			// start at a random position so that ties are broken randomly
+			int offset = ThreadLocalRandom.current().nextInt(nodes.size());
+			for (int i = 0; i < nodes.size(); i++) {
+				Node node = nodes.get((offset + i) % nodes.size());
+				if (!allEjected && (node.ejected || node == exclude)) continue;
+				double score = node.outstanding.get();
+				if (strategy == BalancingStrategy.LATENCY_WEIGHTED) {
+					score = (score + 1) * node.latencyNanos;
+				}
+				if (score < bestScore) {
+					best = node;
+					bestScore = score;
+				}
+			}
+		}
+		best.outstanding.incrementAndGet();
+		return best;
+	}
+	
+	/** Finishes a request on a node.
+	 * 
+	 * @param node the node
+	 * @param nanos the duration of the request
+	 * @param success false if the node could not be reached or reported a gateway error
+	 */
+	void release(Node node, long nanos, boolean success) {
+		node.outstanding.decrementAndGet();
+		if (success) {
+			node.latencyNanos = node.latencyNanos == 0 ? nanos : EWMA_ALPHA * nanos + (1 - EWMA_ALPHA) * node.latencyNanos;
+			synchronized (node) {
+				node.consecutiveFailures = 0;
+			}
+			return;
+		}
+		if (nodes.size() == 1) return;
+		synchronized (node) {
+			node.consecutiveFailures++;
+			if (node.ejected || node.consecutiveFailures < FAILURES_BEFORE_EJECTION) return;
+			node.ejected = true;
+		}
+		logger.log(Level.WARNING, "ejecting Okapi node " + node.uri + " after " + FAILURES_BEFORE_EJECTION + " consecutive failures");
+		startProber();
+	}
+	
+	/** Starts probing ejected nodes in the background, if not yet done.
+	 */
+	private synchronized void startProber() {
+		if (prober != null) return;
+		prober = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "okapi-node-prober");
+			t.setDaemon(true);
+			return t;
+		});
+		prober.scheduleWithFixedDelay(this::probeEjectedNodes, PROBE_INTERVAL_SECONDS, PROBE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	private void probeEjectedNodes() {
+		for (Node node : nodes) {
+			if (!node.ejected) continue;
+			try {
+				HttpURLConnection con = (HttpURLConnection) node.uri.resolve(URL_HEALTH).toURL().openConnection();
+				con.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+				con.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+				int responseCode = con.getResponseCode();
+				con.disconnect();
+				if (responseCode / 100 == 2) {
+					synchronized (node) {
+						node.consecutiveFailures = 0;
+						node.ejected = false;
+					}
+					logger.log(Level.INFO, "Okapi node " + node.uri + " is back");
+				}
+			} catch (IOException e) {
+				logger.log(Level.DEBUG, "Okapi node " + node.uri + " is still unavailable", e);
+			}
+		}
+	}
+	
+}
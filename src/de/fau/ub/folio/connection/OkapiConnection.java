@@ -5,20 +5,43 @@ import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import javax.net.ssl.HttpsURLConnection;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -27,6 +50,10 @@ import org.json.JSONObject;
  *  An Okapi connection is defined by the base URL/URI of an Okapi instance
  *  and a tenant.
  *  
+ *  If Okapi runs on several gateway nodes, the connection may be given the base URIs
+ *  of all nodes. Requests are then distributed over the nodes according to a 
+ *  {@code BalancingStrategy}; all nodes share the same access token.
+ *  
  *  This class provides methods to make calls to the FOLIO API. The methods come in different 
  *  flavors for each of the REST verbs: GET, POST, PUT, DELETE.
  *  It provides quick access methods that return parsed JSON objects as well as sister methods
@@ -44,19 +71,33 @@ public final class OkapiConnection {
 
 	public static final String JSON_MIMETYPE = "application/json";
 	private static final String URL_LOGIN = "authn/login";
+	private static final String HEADER_REQUEST_ID = "X-Okapi-Request-Id";
+	private static final int WARM_UP_TIMEOUT_MILLIS = 10000;
 	
-	private URI uri;
+	private NodeBalancer nodes;
 	private String tenant;
 	private TokenProvider tokenProvider;
 	private String token = null;
 	private Logger logger;
 	private Charset utf8 = Charset.forName("utf-8");
+	private boolean coalesceRequests = false;
+	private final ConcurrentHashMap<String, CompletableFuture<Response>> inFlightRequests = new ConcurrentHashMap<>();
+	private HedgingPolicy hedgingPolicy = null;
+	private ExecutorService executor = null;
+	private final TimingSSLSocketFactory sslSocketFactory = new TimingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+	private volatile RequestRecorder recorder = null;
+	private PriorityScheduler scheduler = null;
+	private RequestPriority defaultPriority = RequestPriority.NORMAL;
+	private static final ThreadLocal<RequestPriority> currentPriority = new ThreadLocal<>();
 	
 	/** Encapsulates a response to a request.
 	 * 
 	 * This class transports the response's http response code, its content mime type,
 	 * its headers and the body.
 	 * 
+	 * It also provides the {@code X-Okapi-Request-Id} of the request, which can be used to
+	 * find the request in Okapi's logs, and a timing breakdown of the request.
+	 * 
 	 * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
 	 *
 	 */
@@ -65,12 +106,16 @@ public final class OkapiConnection {
 		private byte[] body;
 		private String contentType;
 		private Map<String, List<String>> headers;
-		private Response(int httpCode, String contentType, byte[] body, Map<String, List<String>> headers) {
+		private String requestId;
+		private RequestTiming timing;
+		private Response(int httpCode, String contentType, byte[] body, Map<String, List<String>> headers, String requestId, RequestTiming timing) {
 			super();
 			this.httpCode = httpCode;
 			this.body = body;
 			this.contentType = contentType;
 			this.headers = headers == null ? Collections.emptyMap() : headers;
+			this.requestId = requestId;
+			this.timing = timing;
 		}
 		/** Return the HTTP code of the response
 		 * 
@@ -94,16 +139,27 @@ public final class OkapiConnection {
 		 * @return the response body as a JSON object
 		 */
 		public JSONObject toJson() {
-			if (! JSON_MIMETYPE.equals(contentType)) return null;
-			return new JSONObject(body);
+			if (! isJson()) return null;
+			long start = System.nanoTime();
+			JSONObject json = new JSONObject(new String(body, utf8));
+			timing.parse.addAndGet(System.nanoTime() - start);
+			return json;
 		}
 		/** Return the response body as a JSON array.
 		 * 
 		 * @return the response body as a JSON array
 		 */
 		public JSONArray toJsonArray() {
-			if (! JSON_MIMETYPE.equals(contentType)) return null;
-			return new JSONArray(body);
+			if (! isJson()) return null;
+			long start = System.nanoTime();
+			JSONArray json = new JSONArray(new String(body, utf8));
+			timing.parse.addAndGet(System.nanoTime() - start);
+			return json;
+		}
+		/** Checks the content type for JSON, which may come with a charset parameter.
+		 */
+		private boolean isJson() {
+			return contentType != null && contentType.startsWith(JSON_MIMETYPE);
 		}
 		/** Returns the response headers, @see {@code HttpURLConnection.getHeaderFields()} 
 		 * 
@@ -112,6 +168,20 @@ public final class OkapiConnection {
 		public Map<String, List<String>> headers() {
 			return headers;
 		}
+		/** Returns the {@code X-Okapi-Request-Id} the request was sent with.
+		 * 
+		 * @return the request id
+		 */
+		public String requestId() {
+			return requestId;
+		}
+		/** Returns the timing breakdown of the request.
+		 * 
+		 * @return the timing
+		 */
+		public RequestTiming timing() {
+			return timing;
+		}
 		/** Return the response body as a String.
 		 * 
 		 * @return the response body as a String
@@ -122,16 +192,127 @@ public final class OkapiConnection {
 		}
 	}
 	
+	/** A single attempt to send a request that may be cancelled from another thread.
+	 * 
+	 * Cancelling disconnects the underlying connection, which makes the attempt fail. 
+	 */
+	private static class Attempt {
+		private volatile HttpURLConnection con = null;
+		private volatile boolean cancelled = false;
+		private volatile boolean done = false;
+		
+		private void cancel() {
+			cancelled = true;
+			HttpURLConnection con = this.con;
+			// don't disconnect finished attempts as this would close a kept-alive connection
+			if (con != null && !done) con.disconnect();
+		}
+	}
+	
 	public OkapiConnection(URI uri, String tenant, TokenProvider tokenProvider) {
 		this(uri, tenant, tokenProvider, null);
 	}
 	
 	public OkapiConnection(URI uri, String tenant, TokenProvider tokenProvider, Logger logger) {
+		this(List.of(uri), tenant, tokenProvider, logger, null);
+	}
+	
+	/** Creates a connection to an Okapi that runs on several gateway nodes.
+	 * 
+	 * @param uris the base URIs of the nodes
+	 * @param tenant the tenant
+	 * @param tokenProvider the token provider; the token is shared by all nodes
+	 * @param logger optional logger
+	 * @param strategy the strategy for selecting a node for a request; 
+	 * 		  defaults to {@code BalancingStrategy.LEAST_OUTSTANDING}
+	 */
+	public OkapiConnection(List<URI> uris, String tenant, TokenProvider tokenProvider, Logger logger, BalancingStrategy strategy) {
 		super();
-		this.uri = uri;
 		this.tenant = tenant;
 		this.tokenProvider = tokenProvider;
 		this.logger = logger != null ? logger : System.getLogger(this.getClass().getCanonicalName());
+		this.nodes = new NodeBalancer(uris, strategy, this.logger);
+	}
+
+	
+	/** Enables or disables coalescing of concurrent GET requests.
+	 * 
+	 * If enabled, concurrent GET requests with the same path, parameters and custom headers
+	 * are sent only once and all callers receive the same {@code Response} object. 
+	 * A request is shared only while it is in flight, ie. this is not a cache: a GET
+	 * issued after the shared request has completed triggers a new request.
+	 * 
+	 * As the {@code Response} object is shared, callers must not modify its body array.
+	 * 
+	 * @param coalesceRequests true to enable coalescing; defaults to false
+	 */
+	public void setCoalesceRequests(boolean coalesceRequests) {
+		this.coalesceRequests = coalesceRequests;
+	}
+
+	
+	/** Sets a policy for hedging GET requests.
+	 * 
+	 * If set, a GET request that has not been answered after a delay determined
+	 * by the policy is sent a second time. The response that arrives first is returned
+	 * and the other attempt is cancelled.
+	 * 
+	 * @param hedgingPolicy the policy or null to disable hedging (default)
+	 */
+	public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+		this.hedgingPolicy = hedgingPolicy;
+	}
+
+	
+	/** Sets a recorder that is passed every request sent through this connection together with its outcome.
+	 * 
+	 * The recorder sees the request as the caller issued it, ie. with the custom headers but without
+	 * the access token, the tenant and a generated request id, which are added by this connection.
+	 * Each call is recorded once, however often it is retried or hedged. Logins are not recorded.
+	 * 
+	 * @param recorder the recorder or null to stop recording (default)
+	 */
+	public void setRecorder(RequestRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	
+	/** Sets a scheduler that limits the number of concurrent requests and serves them by priority.
+	 * 
+	 * The priority of a request is the one set for the current thread by {@code setCurrentPriority()} 
+	 * or else the default priority of the connection. The time a request waits for a slot
+	 * is reported as {@code queueWait} of its {@code RequestTiming}.
+	 * 
+	 * @param scheduler the scheduler or null for no limit (default)
+	 */
+	public void setScheduler(PriorityScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/** Sets the priority of requests from threads that have not set one.
+	 * 
+	 * @param defaultPriority the priority; defaults to {@code NORMAL}
+	 */
+	public void setDefaultPriority(RequestPriority defaultPriority) {
+		this.defaultPriority = defaultPriority;
+	}
+
+	/** Sets the priority of the requests the current thread sends through any connection,
+	 * @see #setScheduler(PriorityScheduler)
+	 * 
+	 * @param priority the priority or null to use the default priority of the connection
+	 */
+	public static void setCurrentPriority(RequestPriority priority) {
+		if (priority == null) currentPriority.remove();
+		else currentPriority.set(priority);
+	}
+
+	/** Returns the priority set for the current thread.
+	 * 
+	 * @return the priority or null if none has been set
+	 */
+	public static RequestPriority getCurrentPriority() {
+		return currentPriority.get();
 	}
 
 	
@@ -146,7 +327,8 @@ public final class OkapiConnection {
 	 * @throws ConnectionException if something went wrong
 	 */
 	public Response delete (String path, Map<String, String> parameters, Map<String, String> customHeaders) throws ConnectionException {
-		return doRequest("DELETE", path, parameters, null, customHeaders, null);
+		return recorded("DELETE", path, parameters, null, customHeaders, null,
+				() -> scheduled(() -> sendRequest("DELETE", path, parameters, null, customHeaders, null, null)));
 	}
 
 	/** Send a get request.
@@ -160,7 +342,12 @@ public final class OkapiConnection {
 	 * @throws ConnectionException if something went wrong
 	 */
 	public Response get (String path, Map<String, String> parameters, Map<String, String> customHeaders) throws ConnectionException {
-		return doRequest("GET", path, parameters, null, customHeaders, null);
+		return recorded("GET", path, parameters, null, customHeaders, null, () -> {
+			if (coalesceRequests) {
+				return coalescedGet(path, parameters, customHeaders);
+			}
+			return scheduled(() -> sendGet(path, parameters, customHeaders));
+		});
 	}
 
 	/** Send a post request.
@@ -180,7 +367,8 @@ public final class OkapiConnection {
 	 * @throws ConnectionException if something went wrong
 	 */
 	public Response post (String path, String contentType, Map<String, String> customHeaders, byte[] body) throws ConnectionException {
-		return doRequest("POST", path, null, contentType, customHeaders, body);
+		return recorded("POST", path, null, contentType, customHeaders, body,
+				() -> scheduled(() -> sendRequest("POST", path, null, contentType, customHeaders, body, null)));
 	}
 
 	/** Send a put request.
@@ -200,19 +388,453 @@ public final class OkapiConnection {
 	 * @throws ConnectionException if something went wrong
 	 */
 	public Response put (String path, String contentType, Map<String, String> customHeaders, byte[] body) throws ConnectionException {
-		return doRequest("PUT", path, null, contentType, customHeaders, body);
+		return recorded("PUT", path, null, contentType, customHeaders, body,
+				() -> scheduled(() -> sendRequest("PUT", path, null, contentType, customHeaders, body, null)));
 	}
 
 	public JSONObject getJSON (String path, Map<String, String> parameters, Map<String, String> customHeaders) throws ConnectionException {
-		return new JSONObject(get(path, parameters, customHeaders));
+		return parseJSON(get(path, parameters, customHeaders));
 	}
 	
 	public JSONObject postJSON (String path, Map<String, String> customHeaders, JSONObject body) throws ConnectionException {
-		return new JSONObject(post(path, JSON_MIMETYPE, customHeaders, body.toString().getBytes(utf8)).body());
+		return parseJSON(post(path, JSON_MIMETYPE, customHeaders, body.toString().getBytes(utf8)));
 	}
 	
 	public JSONObject putJSON (String path, Map<String, String> customHeaders, JSONObject body) throws ConnectionException {
-		return new JSONObject(put(path, JSON_MIMETYPE, customHeaders, body.toString().getBytes(utf8)).body());
+		return parseJSON(put(path, JSON_MIMETYPE, customHeaders, body.toString().getBytes(utf8)));
+	}
+
+	/** Deletes all records matching a CQL query.
+	 *
+	 * The matching records are fetched page by page, so the result set is never held in memory
+	 * as a whole. The deletes are sent in parallel. A failed delete does not abort the operation
+	 * but is reported to the listener.
+	 *
+	 * @param path the path of the collection endpoint, e.g. "item-storage/items"; a record is deleted
+	 * 		  at path/id
+	 * @param collectionKey the key of the record array in the collection response, e.g. "items"
+	 * @param query a CQL query without sort clause; null for all records
+	 * @param parallelism the maximum number of deletes sent at once
+	 * @param listener receives progress and failures; null to log failures
+	 * @return the counts of the operation
+	 * @throws ConnectionException if the matching records cannot be fetched
+	 * @throws InterruptedException if interrupted while waiting for the deletes
+	 */
+	public BulkResult deleteByQuery (String path, String collectionKey, String query, int parallelism, BulkListener listener) throws ConnectionException, InterruptedException {
+		return new BulkOperation(this, path, collectionKey, query, null, parallelism, listener).run();
+	}
+
+	/** Updates all records matching a CQL query.
+	 *
+	 * Each matching record is passed to the modifier and the result is put back at path/id.
+	 * If Okapi reports a version conflict (409), the record is fetched again and the modifier
+	 * is applied to the current version, so the modifier may be called more than once per record.
+	 *
+	 * The matching records are fetched page by page, so the result set is never held in memory
+	 * as a whole. The updates are sent in parallel. A failed update does not abort the operation
+	 * but is reported to the listener.
+	 *
+	 * @param path the path of the collection endpoint, e.g. "item-storage/items"
+	 * @param collectionKey the key of the record array in the collection response, e.g. "items"
+	 * @param query a CQL query without sort clause; null for all records
+	 * @param modifier returns the modified record, which may be the argument itself, or null
+	 * 		  to leave the record unchanged. Must be thread-safe.
+	 * @param parallelism the maximum number of updates sent at once
+	 * @param listener receives progress and failures; null to log failures
+	 * @return the counts of the operation
+	 * @throws ConnectionException if the matching records cannot be fetched
+	 * @throws InterruptedException if interrupted while waiting for the updates
+	 */
+	public BulkResult updateByQuery (String path, String collectionKey, String query, UnaryOperator<JSONObject> modifier, int parallelism, BulkListener listener) throws ConnectionException, InterruptedException {
+		if (modifier == null) throw new IllegalArgumentException("modifier must not be null");
+		return new BulkOperation(this, path, collectionKey, query, modifier, parallelism, listener).run();
+	}
+
+
+	/** Prepares the connection for the first requests, so that they need not wait for DNS, TCP and TLS handshakes and the login.
+	 *
+	 * The phases run one after the other: the host names of all nodes are resolved, then the given number of
+	 * connections to each node is opened in parallel with requests to Okapi's health endpoint, and finally
+	 * an access token is acquired. The connections are kept alive by the JVM for the next requests.
+	 * Note that the JVM keeps at most {@code http.maxConnections} (default 5) idle connections per node;
+	 * the TLS sessions of further connections are still cached and make later handshakes cheaper.
+	 *
+	 * Nodes that cannot be reached are counted as failed connections but do not fail the warm-up.
+	 *
+	 * @param connections the number of connections per node; 0 to only resolve the host names and acquire the token
+	 * @return the duration of each phase
+	 * @throws ConnectionException if no access token can be acquired
+	 */
+	public WarmUpReport warmUp (int connections) throws ConnectionException {
+		if (connections < 0) throw new IllegalArgumentException("number of connections must not be negative");
+		WarmUpReport report = new WarmUpReport();
+		long start = System.nanoTime();
+		List<URI> uris = nodes.uris();
+		for (URI uri : uris) {
+			long time = System.nanoTime();
+			if (uri.getHost() == null) {
+				// e.g. a host name with an underscore, which java.net.URI does not parse as a server authority
+				this.logger.log(Level.WARNING, "cannot resolve host name of Okapi node " + uri + ": no valid host name");
+			} else if (!isIpLiteral(uri.getHost())) {
+				try {
+					InetAddress.getAllByName(uri.getHost());
+				} catch (UnknownHostException e) {
+					this.logger.log(Level.WARNING, "cannot resolve host name of Okapi node " + uri, e);
+				}
+			}
+			report.dns.put(uri, System.nanoTime() - time);
+		}
+		long time = System.nanoTime();
+		if (connections > 0) {
+			// all connections are held open until each one got its response, otherwise they would reuse each other
+			CountDownLatch opened = new CountDownLatch(uris.size() * connections);
+			List<CompletableFuture<RequestTiming>> futures = new ArrayList<>();
+			for (URI uri : uris) {
+				for (int i = 0; i < connections; i++) {
+					futures.add(CompletableFuture.supplyAsync(() -> openWarmConnection(uri, opened), executor()));
+				}
+			}
+			for (CompletableFuture<RequestTiming> future : futures) {
+				RequestTiming timing = future.join();
+				if (timing == null) report.failedConnections++;
+				else report.connections.add(timing);
+			}
+		}
+		report.connectPhase = System.nanoTime() - time;
+		time = System.nanoTime();
+		try {
+			if (getAccessToken() == null) throw new ConnectionException("no access token for tenant " + tenant, HttpURLConnection.HTTP_FORBIDDEN);
+		} catch (AuthenticationException e) {
+			throw new ConnectionException("cannot acquire an access token for tenant " + tenant, e);
+		}
+		report.token = System.nanoTime() - time;
+		report.total = System.nanoTime() - start;
+		this.logger.log(Level.INFO, report.toString());
+		return report;
+	}
+
+	/** Warms up the connection in the background, @see {@link #warmUp(int)}.
+	 *
+	 * Requests sent in the meantime wait for the access token instead of logging in a second time.
+	 *
+	 * @param connections the number of connections per node
+	 * @return completes with the report or exceptionally with a {@code ConnectionException}
+	 */
+	public CompletableFuture<WarmUpReport> warmUpAsync (int connections) {
+		if (connections < 0) throw new IllegalArgumentException("number of connections must not be negative");
+		CompletableFuture<WarmUpReport> future = new CompletableFuture<>();
+		executor().execute(() -> {
+			try {
+				future.complete(warmUp(connections));
+			} catch (ConnectionException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/** Opens a connection to a node for the warm-up.
+	 *
+	 * @param uri the base URI of the node
+	 * @param opened counted down as soon as the response status has arrived or the connection failed;
+	 * 		  the response body is read, which returns the connection to the keep-alive cache, only when it reaches zero
+	 * @return the timing of the connection or null if it failed
+	 */
+	private RequestTiming openWarmConnection (URI uri, CountDownLatch opened) {
+		RequestTiming timing = new RequestTiming();
+		InputStream in = null;
+		try {
+			HttpURLConnection con = (HttpURLConnection) buildUrl(uri, NodeBalancer.URL_HEALTH, null).openConnection();
+			if (con instanceof HttpsURLConnection) {
+				((HttpsURLConnection) con).setSSLSocketFactory(sslSocketFactory);
+			}
+			con.setConnectTimeout(WARM_UP_TIMEOUT_MILLIS);
+			con.setReadTimeout(WARM_UP_TIMEOUT_MILLIS);
+			long time = System.nanoTime();
+			TimingSSLSocketFactory.reset();
+			con.connect();
+			long layered = TimingSSLSocketFactory.layeredAt();
+			long connected = System.nanoTime();
+			if (layered > 0) {
+				timing.connect = layered - time;
+				timing.tls = connected - layered;
+			}
+			else {
+				timing.connect = connected - time;
+			}
+			int responseCode = con.getResponseCode();
+			timing.timeToFirstByte = System.nanoTime() - connected;
+			in = responseCode / 100 == 2 ? con.getInputStream() : con.getErrorStream();
+		} catch (IOException e) {
+			this.logger.log(Level.WARNING, "cannot open a connection to Okapi node " + uri, e);
+			timing = null;
+		} finally {
+			opened.countDown();
+		}
+		if (in != null) {
+			try (InputStream body = in) {
+				opened.await();
+				body.readAllBytes();
+			} catch (IOException e) {
+				// the connection has been opened, that's what counts
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return timing;
+	}
+
+	/** A request that may be scheduled.
+	 */
+	private interface Call {
+		Response call() throws ConnectionException;
+	}
+	
+	/** Sends a request once the scheduler, if any, grants a slot.
+	 * 
+	 * The slot is held for the whole request, including retries and hedged attempts. 
+	 */
+	private Response scheduled (Call call) throws ConnectionException {
+		PriorityScheduler scheduler = this.scheduler;
+		if (scheduler == null) return call.call();
+		RequestPriority priority = currentPriority.get();
+		if (priority == null) priority = defaultPriority;
+		long wait;
+		try {
+			wait = scheduler.acquire(priority);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionException("interrupted while waiting for a request slot", e);
+		}
+		try {
+			Response response = call.call();
+			if (response != null) response.timing().queueWait += wait;
+			return response;
+		} finally {
+			scheduler.release(priority);
+		}
+	}
+	
+	/** Parses a response body as JSON object.
+	 * 
+	 * @param response the response
+	 * @return the JSON object or null if there is no response or the body is empty, 
+	 * 		   e.g. for 204 No Content
+	 */
+	private JSONObject parseJSON (Response response) {
+		if (response == null || response.body().length == 0) return null;
+		long start = System.nanoTime();
+		JSONObject json = new JSONObject(new String(response.body(), utf8));
+		response.timing().parse.addAndGet(System.nanoTime() - start);
+		return json;
+	}
+	
+	/** Sends a GET request unless an identical one is already in flight, in which case
+	 * the response of the latter is returned.
+	 * 
+	 * The caller that actually sends the request removes the entry as soon as the request
+	 * has completed, so that only requests in flight are shared.
+	 * 
+	 * @see #setCoalesceRequests(boolean)
+	 */
+	private Response coalescedGet (String path, Map<String, String> parameters, Map<String, String> customHeaders) throws ConnectionException {
+		// the tenant is fixed per connection, so path, parameters and headers identify the request
+		String key = path;
+		if (parameters != null && !parameters.isEmpty()) {
+			key += ' ' + new TreeMap<>(parameters).toString();
+		}
+		if (customHeaders != null && !customHeaders.isEmpty()) {
+			key += ' ' + new TreeMap<>(customHeaders).toString();
+		}
+		CompletableFuture<Response> future = new CompletableFuture<>();
+		CompletableFuture<Response> inFlight = inFlightRequests.putIfAbsent(key, future);
+		if (inFlight == null) {
+			// we are the first, so we do the request
+			try {
+				Response response = scheduled(() -> sendGet(path, parameters, customHeaders));
+				future.complete(response);
+				return response;
+			} catch (ConnectionException | RuntimeException e) {
+				future.completeExceptionally(e);
+				throw e;
+			} finally {
+				inFlightRequests.remove(key, future);
+			}
+		}
+		try {
+			return inFlight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionException("interrupted while waiting for request for path " + path, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ConnectionException) {
+				throw (ConnectionException) cause;
+			}
+			else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new ConnectionException("request for path " + path + " failed", cause);
+		}
+	}
+	
+	/** Sends a GET request, hedged if there is a hedging policy.
+	 */
+	private Response sendGet (String path, Map<String, String> parameters, Map<String, String> customHeaders) throws ConnectionException {
+		HedgingPolicy policy = this.hedgingPolicy;
+		if (policy == null) {
+			return sendRequest("GET", path, parameters, null, customHeaders, null, null);
+		}
+		long delay = policy.beginRequest();
+		if (delay < 0) {
+			// not enough latencies known yet, so we only take measurements
+			long start = System.nanoTime();
+			Response response = sendRequest("GET", path, parameters, null, customHeaders, null, null);
+			policy.recordLatency(System.nanoTime() - start);
+			return response;
+		}
+		// both attempts share the request id, so that they can be correlated in the logs of Okapi and the modules
+		String requestId = requestId(path, customHeaders);
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		if (customHeaders != null) headers.putAll(customHeaders);
+		headers.put(HEADER_REQUEST_ID, requestId);
+		CompletableFuture<Response> winner = new CompletableFuture<>();
+		AtomicInteger pending = new AtomicInteger(1);
+		Attempt primary = startAttempt(path, parameters, headers, winner, pending, policy);
+		Attempt hedge = null;
+		try {
+			try {
+				return winner.get(delay, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// only hedge if the primary attempt has not failed in the meantime
+				int p = pending.get();
+				if (p > 0 && policy.tryAcquireHedge() && pending.compareAndSet(p, p + 1)) {
+					this.logger.log(Level.DEBUG, "hedging request for path " + path);
+					commitRetryEvent(OkapiRetryEvent.HEDGE, "GET", path, requestId);
+					hedge = startAttempt(path, parameters, headers, winner, pending, policy);
+				}
+				return winner.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionException("interrupted while waiting for request for path " + path, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ConnectionException) {
+				throw (ConnectionException) cause;
+			}
+			else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new ConnectionException("request for path " + path + " failed", cause);
+		} finally {
+			primary.cancel();
+			if (hedge != null) hedge.cancel();
+		}
+	}
+	
+	/** Starts an attempt of a hedged GET request in the background.
+	 * 
+	 * The first successful attempt completes the winner; the last failing attempt
+	 * completes the winner exceptionally.
+	 */
+	private Attempt startAttempt (String path, Map<String, String> parameters, Map<String, String> customHeaders, 
+			CompletableFuture<Response> winner, AtomicInteger pending, HedgingPolicy policy) {
+		Attempt attempt = new Attempt();
+		executor().execute(() -> {
+			long start = System.nanoTime();
+			try {
+				Response response = sendRequest("GET", path, parameters, null, customHeaders, null, attempt);
+				attempt.done = true;
+				policy.recordLatency(System.nanoTime() - start);
+				winner.complete(response);
+			} catch (ConnectionException | RuntimeException e) {
+				attempt.done = true;
+				if (pending.decrementAndGet() == 0) winner.completeExceptionally(e);
+			}
+		});
+		return attempt;
+	}
+	
+	/** Returns the executor for background work of this connection.
+	 * 
+	 * The executor is created on demand and uses daemon threads so that
+	 * it does not keep the JVM alive.
+	 */
+	private synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "okapi-connection-worker");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return executor;
+	}
+	
+	/** Assembles the URL of a request.
+	 * 
+	 * @param base the base URI of the Okapi node
+	 * @param path the path part of the URL of the Okapi API endpoint
+	 * @param parameters URL query parameters to be included into the URL; keys and values get url-encoded
+	 * @return the URL
+	 * @throws MalformedURLException if the resulting URL is invalid
+	 */
+	private URL buildUrl (URI base, String path, Map<String, String> parameters) throws MalformedURLException {
+		if (parameters == null || parameters.isEmpty()) { 
+			return base.resolve(path).toURL();
+		}
+		StringBuilder tempUrl = new StringBuilder(base.toString());
+		tempUrl.append(path);
+		StringBuffer delim = new StringBuffer(tempUrl.indexOf("?") == -1 ? "?" : "&");
+		parameters.forEach((key, value) -> { 
+			tempUrl
+				.append(delim.charAt(0))
+				.append(URLEncoder.encode(key, utf8))
+				.append('=')
+				.append(URLEncoder.encode(value, utf8));
+			delim.setCharAt(0, '&');
+		});
+		return new URL(tempUrl.toString());
+	}
+	
+	/** Makes a call of one of the public request methods and passes the request to the recorder, if there is one, 
+	 * @see {@link #setRecorder(RequestRecorder)}.
+	 * 
+	 * The request is recorded with the arguments given by the caller, so retries and hedged attempts
+	 * made by the call are not recorded separately.
+	 */
+	private Response recorded (String method, String path, Map<String, String> parameters, String contentType, Map<String, String> customHeaders, byte[] body, Call call) throws ConnectionException {
+		RequestRecorder recorder = this.recorder;
+		if (recorder == null) {
+			return call.call();
+		}
+		long startMillis = System.currentTimeMillis();
+		long start = System.nanoTime();
+		int status = -1;
+		byte[] responseBody = null;
+		String requestId = null;
+		try {
+			Response response = call.call();
+			if (response == null) {
+				status = HttpURLConnection.HTTP_FORBIDDEN;
+			}
+			else {
+				status = response.httpCode();
+				responseBody = response.body();
+				requestId = response.requestId();
+			}
+			return response;
+		} catch (ConnectionException e) {
+			status = e.getHttpCode();
+			throw e;
+		} finally {
+			try {
+				recorder.record(method, path, parameters, customHeaders, contentType, body, status, responseBody, requestId, startMillis, System.nanoTime() - start);
+			} catch (RuntimeException e) {
+				this.logger.log(Level.WARNING, "cannot record request for path " + path, e);
+			}
+		}
 	}
 	
 	/** Does the main work of preparing and sending a request to Okapi as well as retrieving the response.
@@ -223,66 +845,108 @@ public final class OkapiConnection {
 	 * @param contentType the mimetype of the body; sets the {@code Content-Type} request header to this value.
 	 * @param customHeaders custom or extended headers sent with the request. Cannot be used to overwrite content type, access token or okapi tenant headers. 
 	 * @param body the request body. 
+	 * @param attempt optional handle that allows to cancel the request from another thread
 	 * @return a {@code Response} object
 	 * @throws ConnectionException if something went wrong
 	 */
-	private Response doRequest (String method, String path, Map<String, String> parameters, String contentType, Map<String, String> customHeaders, byte[] body) throws ConnectionException {
+	private Response sendRequest (String method, String path, Map<String, String> parameters, String contentType, Map<String, String> customHeaders, byte[] body, Attempt attempt) throws ConnectionException {
 		int retries = 1;
+		// if a node cannot be reached, we may try the others
+		int failovers = nodes.size() - 1;
+		NodeBalancer.Node failedNode = null;
+		// we propagate a request id given by the caller, otherwise we make one up
+		String requestId = requestId(path, customHeaders);
 		
 		while (retries >= 0) {
 			retries--;
+			RequestTiming timing = new RequestTiming();
+			long start = System.nanoTime();
+			// a failed login says nothing about the node, so we get the token before selecting one
+			String token = getAccessToken();
+			NodeBalancer.Node node = nodes.acquire(failedNode);
+			long nodeStart = System.nanoTime();
+			// only failures to reach the node and gateway errors count against the node
+			boolean nodeOk = true;
+			OkapiRequestEvent event = new OkapiRequestEvent();
+			event.begin();
 			try {
 				// prepare connection to okapi and send request
-				URL url;
-				if (parameters == null || parameters.isEmpty()) { 
-					url = this.uri.resolve(path).toURL();
+				URL url = buildUrl(node.uri(), path, parameters);
+				HttpURLConnection con = (HttpURLConnection) url.openConnection();
+				if (attempt != null) {
+					attempt.con = con;
+					if (attempt.cancelled) throw new ConnectionException("request for path " + path + " cancelled");
 				}
-				else {
-					StringBuilder tempUrl = new StringBuilder(this.uri.toString());
-					tempUrl.append(path);
-					StringBuffer delim = new StringBuffer(tempUrl.indexOf("?") == -1 ? '?' : '&');
-					parameters.forEach((key, value) -> { 
-						tempUrl
-							.append(delim.charAt(0))
-							.append(URLEncoder.encode(key, utf8))
-							.append('=')
-							.append(URLEncoder.encode(key, utf8));
-						delim.insert(0, '&');
-					});
-					url = new URL(tempUrl.toString());
+				if (con instanceof HttpsURLConnection) {
+					((HttpsURLConnection) con).setSSLSocketFactory(sslSocketFactory);
 				}
-				HttpURLConnection con = (HttpURLConnection) url.openConnection();
 				con.setRequestMethod(method);
 				// set headers
 				// first set custom headers so that they will be overwritten by the fixed values
 				if (customHeaders != null && !customHeaders.isEmpty()) {
 					customHeaders.forEach((key, value) -> { con.setRequestProperty(key, value); });
 				}
-				String token = getAccessToken();
 				con.setRequestProperty("X-Okapi-Token", token);
 				con.setRequestProperty("X-Okapi-Tenant", this.tenant);
+				con.setRequestProperty(HEADER_REQUEST_ID, requestId);
 				if (contentType != null) con.setRequestProperty("Content-type", contentType);
+				boolean hasBody = ("POST".equals(method) || "PUT".equals(method)) && body != null && body.length != 0;
+				if (hasBody) con.setDoOutput(true);
+				// connect explicitly in order to separate the phases
+				long time = System.nanoTime();
+				timing.queueWait = time - start;
+				nodeOk = false;
+				TimingSSLSocketFactory.reset();
+				con.connect();
+				nodeOk = true;
+				long layered = TimingSSLSocketFactory.layeredAt();
+				long connected = System.nanoTime();
+				if (layered > 0) {
+					timing.connect = layered - time;
+					timing.tls = connected - layered;
+				}
+				else {
+					timing.connect = connected - time;
+				}
 				// write data for methods that support a body
-				if (("POST".equals(method) || "PUT".equals(method)) && body != null && body.length != 0) {
-					con.setDoOutput(true);
+				if (hasBody) {
 					OutputStream os = con.getOutputStream();
 					os.write(body);
 					os.flush();
 					os.close();
+					event.bytesSent = body.length;
 				} 
 				// get and parse response
 				int responseCode = con.getResponseCode();
-				if (responseCode == HttpURLConnection.HTTP_OK) { //success
+				event.status = responseCode;
+				timing.timeToFirstByte = System.nanoTime() - connected;
+				// gateway errors indicate a problem with the node rather than with the request
+				nodeOk = responseCode != HttpURLConnection.HTTP_BAD_GATEWAY 
+						&& responseCode != HttpURLConnection.HTTP_UNAVAILABLE
+						&& responseCode != HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+				if (responseCode / 100 == 2) { //success
+					time = System.nanoTime();
 					BufferedInputStream in = new BufferedInputStream(con.getInputStream());
 					byte[] response = in.readAllBytes();
 					in.close();
-					this.logger.log(Level.INFO, "request succeeded with HTTP code " + responseCode + " response body being '" + response + "'");
-					return new Response(responseCode, con.getHeaderField("Content-Type"), response, con.getHeaderFields());
+					timing.download = System.nanoTime() - time;
+					event.bytesReceived = response.length;
+					this.logger.log(Level.INFO, "request " + requestId + " succeeded with HTTP code " + responseCode + " response body being '" + response + "'");
+					this.logger.log(Level.DEBUG, "request " + requestId + " timing: " + timing);
+					return new Response(responseCode, con.getHeaderField("Content-Type"), response, con.getHeaderFields(), requestId, timing);
 				} 
 				else if (responseCode == HttpURLConnection.HTTP_FORBIDDEN) {
 					// okapi complains that we are not authenticated
 					// we reset the token and retry if we have retries left
 					resetAuthentication();
+					OkapiReauthEvent reauth = new OkapiReauthEvent();
+					if (reauth.shouldCommit()) {
+						reauth.pathTemplate = OkapiRequestEvent.pathTemplate(path);
+						reauth.tenant = tenant;
+						reauth.requestId = requestId;
+						reauth.commit();
+					}
+					if (retries >= 0) commitRetryEvent(OkapiRetryEvent.REAUTHENTICATION, method, path, requestId);
 				}
 				else {
 					StringBuffer response = new StringBuffer();
@@ -294,12 +958,38 @@ public final class OkapiConnection {
 						}
 						in.close();
 					}
-					this.logger.log(Level.ERROR, "request for path " + path + " failed with HTTP code " + responseCode + " response error message being '" + response + "'");
-					throw new ConnectionException("request for path " + path + " failed with HTTP code " + responseCode + " response error message being '" + response + "'");
+					this.logger.log(Level.ERROR, "request " + requestId + " for path " + path + " failed with HTTP code " + responseCode + " response error message being '" + response + "'");
+					throw new ConnectionException("request " + requestId + " for path " + path + " failed with HTTP code " + responseCode + " response error message being '" + response + "'", responseCode);
 				}
 			} catch (IOException e) {
-				this.logger.log(Level.ERROR, "request for path " + path + " failed", e);
-				throw new ConnectionException("request for path " + path + " failed", e);
+				if (attempt != null && attempt.cancelled) {
+					// a hedged attempt that lost; not worth an error message
+					nodeOk = true;
+					throw new ConnectionException("request for path " + path + " cancelled", e);
+				}
+				if (e instanceof ConnectionException) throw (ConnectionException) e;
+				if ((e instanceof ConnectException || e instanceof NoRouteToHostException) && failovers > 0) {
+					// the request did not reach the node, so it is safe to send it to another one
+					this.logger.log(Level.WARNING, "cannot reach Okapi node " + node.uri() + ", trying another one", e);
+					failovers--;
+					retries++;
+					failedNode = node;
+					commitRetryEvent(OkapiRetryEvent.FAILOVER, method, path, requestId);
+					continue;
+				}
+				this.logger.log(Level.ERROR, "request " + requestId + " for path " + path + " failed", e);
+				throw new ConnectionException("request " + requestId + " for path " + path + " failed", e);
+			} finally {
+				nodes.release(node, System.nanoTime() - nodeStart, nodeOk);
+				event.end();
+				if (event.shouldCommit()) {
+					event.method = method;
+					event.pathTemplate = OkapiRequestEvent.pathTemplate(path);
+					event.tenant = tenant;
+					event.node = node.uri().toString();
+					event.requestId = requestId;
+					event.commit();
+				}
 			}
 		}
 		return null;
@@ -307,6 +997,48 @@ public final class OkapiConnection {
 
 	
 
+	/** Emits a flight recorder event for a retry, if enabled.
+	 */
+	private void commitRetryEvent (String reason, String method, String path, String requestId) {
+		OkapiRetryEvent retry = new OkapiRetryEvent();
+		if (retry.shouldCommit()) {
+			retry.reason = reason;
+			retry.method = method;
+			retry.pathTemplate = OkapiRequestEvent.pathTemplate(path);
+			retry.tenant = tenant;
+			retry.requestId = requestId;
+			retry.commit();
+		}
+	}
+	
+	/** Returns the request id given in the custom headers or generates one.
+	 * 
+	 * Generated ids follow Okapi's format: six random digits followed by the first path segment.
+	 * 
+	 * @param path the request path
+	 * @param customHeaders the custom headers
+	 * @return the request id
+	 */
+	private static String requestId(String path, Map<String, String> customHeaders) {
+		if (customHeaders != null) {
+			for (Map.Entry<String, String> header : customHeaders.entrySet()) {
+				if (HEADER_REQUEST_ID.equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+					return header.getValue();
+				}
+			}
+		}
+		String segment = path.startsWith("/") ? path.substring(1) : path;
+		int end = 0;
+		while (end < segment.length() && "/?".indexOf(segment.charAt(end)) == -1) end++;
+		return String.format("%06d/%s", ThreadLocalRandom.current().nextInt(1000000), segment.substring(0, end));
+	}
+	
+	/** Checks whether a host is given as an IP address, which needs no resolution.
+	 */
+	private static boolean isIpLiteral(String host) {
+		return host.startsWith("[") || host.chars().allMatch(c -> c == '.' || Character.isDigit(c));
+	}
+	
 	/**Make a call to the authentication path of Okapi.
 	 * 
 	 * This call is special as it does not require an access token but rather retrieves one.
@@ -326,8 +1058,13 @@ public final class OkapiConnection {
 		if (userId.isBlank() && username.isBlank()) {
 			throw new IllegalArgumentException("Either userId or username must be given");
 		}
+		NodeBalancer.Node node = nodes.acquire(null);
+		long start = System.nanoTime();
+		boolean nodeOk = false;
+		OkapiTokenEvent event = new OkapiTokenEvent();
+		event.begin();
 		try {
-			HttpURLConnection con = (HttpURLConnection) this.uri.resolve(URL_LOGIN).toURL().openConnection();
+			HttpURLConnection con = (HttpURLConnection) node.uri().resolve(URL_LOGIN).toURL().openConnection();
 			con.setRequestMethod("POST");
 			con.setRequestProperty("X-Okapi-Tenant", tenant);
 			con.setRequestProperty("Content-type", "application/json");
@@ -353,8 +1090,10 @@ public final class OkapiConnection {
 			w.flush();
 			w.close();
 			String token = con.getHeaderField("x-okapi-token");
+			nodeOk = true;
 			if (token != null) { // we're logged in
 				// it's only here that we get out of this method gracefully;
+				event.success = true;
 				return token;
 			} else {
 				int responseCode = con.getResponseCode();
@@ -369,6 +1108,14 @@ public final class OkapiConnection {
 			}
 		} catch (IOException e) {
 			throw new AuthenticationException("cannot log in", e);
+		} finally {
+			nodes.release(node, System.nanoTime() - start, nodeOk);
+			event.end();
+			if (event.shouldCommit()) {
+				event.source = URL_LOGIN;
+				event.tenant = tenant;
+				event.commit();
+			}
 		}
 	}
 	
@@ -422,7 +1169,19 @@ public final class OkapiConnection {
 	 */
 	private synchronized String getAccessToken() throws AuthenticationException {
 		if (this.token == null) {
-			this.token = tokenProvider.getAccessToken(this);
+			OkapiTokenEvent event = new OkapiTokenEvent();
+			event.begin();
+			try {
+				this.token = tokenProvider.getAccessToken(this);
+			} finally {
+				event.end();
+				if (event.shouldCommit()) {
+					event.source = tokenProvider.getClass().getName();
+					event.tenant = tenant;
+					event.success = this.token != null;
+					event.commit();
+				}
+			}
 		}
 		return this.token;
 	}
@@ -436,39 +1195,94 @@ public final class OkapiConnection {
 	}
 	
 	
+	/** Selects the token provider for the command line script.
+	 * 
+	 * A token in the environment variable {@code OKAPI_TOKEN} is used as is. Otherwise, if we 
+	 * have access to a GUI, we display a graphical dialog, and fall back to a command line prompt
+	 * if we don't.
+	 * 
+	 * The dialog is only looked up at runtime and never in a native image, so that neither the 
+	 * image nor a headless JVM has to load AWT.
+	 */
+	private static TokenProvider commandLineTokenProvider() {
+		String token = System.getenv("OKAPI_TOKEN");
+		if (token != null && !token.isBlank()) {
+			return new FixedTokenProvider(token.strip());
+		}
+		boolean nativeImage = System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+		if (!nativeImage && !Boolean.getBoolean("java.awt.headless")) {
+			try {
+				// the name is not a constant, so that native-image does not pull in the dialog and AWT
+				Class<?> dialog = Class.forName(OkapiConnection.class.getPackageName() + ".DialogCredentialsTokenProvider");
+				if ((Boolean) dialog.getMethod("isMethodAvailable").invoke(null)) {
+					return (TokenProvider) dialog.getConstructor().newInstance();
+				}
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// no GUI support in this runtime
+			}
+		}
+		return new CliCredentialsTokenProvider();
+	}
+	
 	/** A small script to send a request using the commandline. 
 	 * 
-	 * The request body, if needed, is passed via stdin.
+	 * The request body, if needed, is passed via stdin. With {@code --shell}, an {@code OkapiShell}
+	 * is run instead, which reads its commands from the script file or from stdin.
 	 * 
 	 * Credentials are prompted from the user. If there is a GUI, a graphical dialog is displayed,
-	 * otherwise it falls back to a command line prompt
+	 * otherwise it falls back to a command line prompt. A token in the environment variable
+	 * {@code OKAPI_TOKEN} is used without prompting.
 	 * 
 	 * @param args The cli args
 	 * 	- okapi_base_url: the okapi base url
 	 *  - tenant: the tenant
 	 *  - path: the relative path to the endpoint; query parameters need to be correctly included already
 	 *  - the HTTP method
+	 * or
+	 * <pre>
+	 * okapi_base_url tenant --shell [--parallel n] [script_file]
+	 * </pre>
 	 */
 	public static void main(String[] args) {
 		try {
-			if (args.length != 4) {
-				throw new IllegalArgumentException("Accepted args: okapi_base_url tenant path method; Found: " + Arrays.toString(args));
+			boolean shell = args.length >= 3 && args[2].equals("--shell");
+			if (args.length != 4 && !shell) {
+				throw new IllegalArgumentException("Accepted args: okapi_base_url tenant path method | okapi_base_url tenant --shell [--parallel n] [script_file]; Found: " + Arrays.toString(args));
 			}
 			String baseUrl = args[0];
 			String tenant = args[1];
-			String path = args[2];
-			String method = args[3].toUpperCase();
 			URI uri = new URI(baseUrl);
 			
-			// if we have access to a GUI, we display a graphical dialog,
-			// otherwise we fall back to a command line prompt
-			TokenProvider tp = new CliCredentialsTokenProvider();
-			if (DialogCredentialsTokenProvider.isMethodAvailable()) {
-				tp = new DialogCredentialsTokenProvider();
-			}
+			OkapiConnection okapi = new OkapiConnection(uri, tenant, commandLineTokenProvider());
 			
-			OkapiConnection okapi = new OkapiConnection(uri, tenant, tp);
+			if (shell) {
+				int parallelism = 1;
+				String script = null;
+				for (int i = 3; i < args.length; i++) {
+					if (args[i].equals("--parallel") && i + 1 < args.length) {
+						parallelism = Integer.parseInt(args[++i]);
+					}
+					else {
+						script = args[i];
+					}
+				}
+				OkapiShell okapiShell = new OkapiShell(okapi, System.out, parallelism);
+				boolean failed;
+				if (script != null) {
+					try (BufferedReader r = Files.newBufferedReader(Path.of(script))) {
+						failed = okapiShell.run(r, null) > 0;
+					}
+				}
+				else {
+					// prompt only if a user is typing; the prompt goes to stderr to keep stdout clean
+					BufferedReader r = new BufferedReader(new InputStreamReader(System.in, okapi.utf8));
+					failed = okapiShell.run(r, System.console() != null ? System.err : null) > 0;
+				}
+				System.exit(failed ? 1 : 0);
+			}
 			
+			String path = args[2];
+			String method = args[3].toUpperCase();
 			JSONObject response = null;
 			switch (method) {
 			case "DELETE":
@@ -486,7 +1300,7 @@ public final class OkapiConnection {
 					sb.append(line);
 					line = r.readLine();
 				}
-				if (method == "POST") {
+				if (method.equals("POST")) {
 					response = okapi.postJSON(path, null, new JSONObject(sb.toString()));
 				}
 				else {
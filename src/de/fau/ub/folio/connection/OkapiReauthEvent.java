@@ -0,0 +1,32 @@
+package de.fau.ub.folio.connection;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**JDK Flight Recorder event for a request that Okapi rejected with 403,
+ * which makes the connection discard its access token.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+@Name("de.fau.ub.folio.connection.Reauthentication")
+@Label("Okapi Re-Authentication")
+@Category({"FOLIO", "Okapi"})
+@Description("The access token was rejected and is reset")
+@StackTrace(false)
+class OkapiReauthEvent extends Event {
+
+	@Label("Path Template")
+	String pathTemplate;
+	
+	@Label("Tenant")
+	String tenant;
+	
+	@Label("Request Id")
+	String requestId;
+	
+}
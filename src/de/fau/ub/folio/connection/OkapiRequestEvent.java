@@ -0,0 +1,70 @@
+package de.fau.ub.folio.connection;
+
+import java.util.regex.Pattern;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**JDK Flight Recorder event for a request to Okapi.
+ * 
+ * There is one event per attempt, ie. a request that is retried or hedged
+ * results in several events with the same request id.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+@Name("de.fau.ub.folio.connection.Request")
+@Label("Okapi Request")
+@Category({"FOLIO", "Okapi"})
+@Description("A request to the Okapi gateway")
+@StackTrace(false)
+class OkapiRequestEvent extends Event {
+
+	private static final Pattern ID_SEGMENT = Pattern.compile("/(?:[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|\\d+)(?=/|$)");
+	
+	@Label("Method")
+	String method;
+	
+	@Label("Path Template")
+	@Description("The path with ids replaced by a placeholder and without query")
+	String pathTemplate;
+	
+	@Label("Tenant")
+	String tenant;
+	
+	@Label("Node")
+	String node;
+	
+	@Label("Request Id")
+	String requestId;
+	
+	@Label("Status")
+	@Description("The HTTP status or -1 if no response was received")
+	int status = -1;
+	
+	@Label("Bytes Sent")
+	@DataAmount
+	long bytesSent;
+	
+	@Label("Bytes Received")
+	@DataAmount
+	long bytesReceived;
+	
+	/** Turns a request path into a template so that requests to the same 
+	 * endpoint can be aggregated.
+	 * 
+	 * @param path the request path
+	 * @return the path template
+	 */
+	static String pathTemplate(String path) {
+		int query = path.indexOf('?');
+		if (query >= 0) path = path.substring(0, query);
+		return ID_SEGMENT.matcher(path).replaceAll("/{id}");
+	}
+	
+}
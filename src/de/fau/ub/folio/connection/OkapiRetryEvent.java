@@ -0,0 +1,42 @@
+package de.fau.ub.folio.connection;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**JDK Flight Recorder event for a request that is sent once more, 
+ * be it after re-authentication, on another node or as a hedge.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+@Name("de.fau.ub.folio.connection.Retry")
+@Label("Okapi Retry")
+@Category({"FOLIO", "Okapi"})
+@Description("A request is sent once more")
+@StackTrace(false)
+class OkapiRetryEvent extends Event {
+
+	static final String REAUTHENTICATION = "re-authentication";
+	static final String FAILOVER = "failover";
+	static final String HEDGE = "hedge";
+	
+	@Label("Reason")
+	String reason;
+	
+	@Label("Method")
+	String method;
+	
+	@Label("Path Template")
+	String pathTemplate;
+	
+	@Label("Tenant")
+	String tenant;
+	
+	@Label("Request Id")
+	String requestId;
+	
+}
@@ -0,0 +1,207 @@
+package de.fau.ub.folio.connection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import de.fau.ub.folio.connection.OkapiConnection.Response;
+
+/**Reads requests line by line and sends them over one connection, which saves the start-up,
+ * the handshake and the login for each request.
+ *
+ * Each line has the form <code>METHOD path [body]</code>, e.g.
+ * <pre>
+ * GET instance-storage/instances?query=title=="Faust*"&amp;limit=5
+ * PUT item-storage/items/0b96a642-5e7f-452d-9cae-9cee66c9a892 {"id": "0b96a642-...", ...}
+ * DELETE holdings-storage/holdings/7e2443c4-cb1e-4a0a-a9b7-dc2fe3e4ba3c
+ * </pre>
+ * Query parameters may be given unencoded after a question mark; they must not contain an ampersand.
+ * The body of a POST or PUT is the rest of the line and is sent as JSON.
+ * Empty lines and lines starting with # are ignored. {@code wait} waits until all requests
+ * sent so far have completed, {@code exit} or {@code quit} end the shell.
+ *
+ * The result of each request is written as a JSON object on a line of its own (NDJSON) with
+ * the line number of the request, the HTTP status, the request id, the duration and the body
+ * or an error message. If requests are sent concurrently, the results are written in the order
+ * in which the requests complete.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public final class OkapiShell {
+
+	private final OkapiConnection okapi;
+	private final PrintStream out;
+	private final int parallelism;
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/** Creates a shell.
+	 *
+	 * @param okapi the connection
+	 * @param out receives the results
+	 * @param parallelism the maximum number of requests sent at once; 1 sends the requests one after another
+	 */
+	public OkapiShell(OkapiConnection okapi, PrintStream out, int parallelism) {
+		super();
+		if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+		this.okapi = okapi;
+		this.out = out;
+		this.parallelism = parallelism;
+	}
+
+	/** Reads and sends requests until the end of the input or an {@code exit} command.
+	 *
+	 * @param in the requests
+	 * @param prompt a stream for prompting the user, e.g. {@code System.err}; null for no prompt
+	 * @return the number of requests that failed
+	 * @throws IOException if the input cannot be read
+	 * @throws InterruptedException if interrupted while waiting for requests
+	 */
+	public int run(BufferedReader in, PrintStream prompt) throws IOException, InterruptedException {
+		ExecutorService executor = parallelism == 1 ? null : Executors.newFixedThreadPool(parallelism, r -> {
+			Thread t = new Thread(r, "okapi-shell-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		Semaphore permits = new Semaphore(parallelism);
+		try {
+			int lineNumber = 0;
+			while (true) {
+				if (prompt != null) {
+					prompt.print("okapi> ");
+					prompt.flush();
+				}
+				String line = in.readLine();
+				if (line == null) break;
+				lineNumber++;
+				line = line.strip();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				if (line.equals("exit") || line.equals("quit")) break;
+				if (line.equals("wait")) {
+					permits.acquire(parallelism);
+					permits.release(parallelism);
+					continue;
+				}
+				int number = lineNumber;
+				String command = line;
+				if (executor == null) {
+					execute(number, command);
+				}
+				else {
+					permits.acquire();
+					executor.execute(() -> {
+						try {
+							execute(number, command);
+						} finally {
+							permits.release();
+						}
+					});
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+		}
+		return failures.get();
+	}
+
+	/** Sends the request of a line and writes the result.
+	 */
+	private void execute(int lineNumber, String line) {
+		JSONObject result = new JSONObject();
+		result.put("line", lineNumber);
+		String[] parts = line.split("\\s+", 2);
+		String method = parts[0].toUpperCase();
+		result.put("method", method);
+		long start = System.nanoTime();
+		try {
+			if (parts.length < 2) throw new IllegalArgumentException("expected: METHOD path [body]");
+			// only POST and PUT have a body, so the path of a GET or DELETE may contain blanks
+			String path = parts[1];
+			byte[] body = new byte[0];
+			if (method.equals("POST") || method.equals("PUT")) {
+				String[] pathAndBody = path.split("\\s+", 2);
+				path = pathAndBody[0];
+				if (pathAndBody.length == 2) body = pathAndBody[1].getBytes(StandardCharsets.UTF_8);
+			}
+			result.put("path", path);
+			Map<String, String> parameters = null;
+			int q = path.indexOf('?');
+			if (q >= 0) {
+				parameters = new LinkedHashMap<>();
+				for (String parameter : path.substring(q + 1).split("&")) {
+					int eq = parameter.indexOf('=');
+					if (eq < 0) parameters.put(parameter, "");
+					else parameters.put(parameter.substring(0, eq), parameter.substring(eq + 1));
+				}
+				path = path.substring(0, q);
+			}
+			Response response;
+			switch (method) {
+			case "GET":
+				response = okapi.get(path, parameters, null);
+				break;
+			case "DELETE":
+				response = okapi.delete(path, parameters, null);
+				break;
+			case "POST":
+				response = okapi.post(path, OkapiConnection.JSON_MIMETYPE, null, body);
+				break;
+			case "PUT":
+				response = okapi.put(path, OkapiConnection.JSON_MIMETYPE, null, body);
+				break;
+			default:
+				throw new IllegalArgumentException("unsupported method " + method);
+			}
+			if (response == null) {
+				failures.incrementAndGet();
+				result.put("status", 403);
+				result.put("error", "access denied");
+			}
+			else {
+				result.put("status", response.httpCode());
+				result.put("requestId", response.requestId());
+				if (response.body().length > 0) {
+					String text = new String(response.body(), StandardCharsets.UTF_8);
+					Object value = text;
+					if (response.contentType() != null && response.contentType().startsWith(OkapiConnection.JSON_MIMETYPE)) {
+						try {
+							value = new JSONTokener(text).nextValue();
+						} catch (JSONException e) {
+							// not quite JSON after all, we pass it on as it is
+						}
+					}
+					result.put("body", value);
+				}
+			}
+		} catch (ConnectionException e) {
+			failures.incrementAndGet();
+			result.put("status", e.getHttpCode());
+			result.put("error", e.getMessage());
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			result.put("error", e.toString());
+		}
+		result.put("millis", (System.nanoTime() - start) / 1000000.0);
+		String json = result.toString();
+		synchronized (out) {
+			out.println(json);
+			out.flush();
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+package de.fau.ub.folio.connection;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**JDK Flight Recorder event for the acquisition of an access token.
+ * 
+ * It is emitted both for the call to the {@code TokenProvider} and for
+ * the login at Okapi, which the token provider may have triggered.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+@Name("de.fau.ub.folio.connection.TokenAcquisition")
+@Label("Okapi Token Acquisition")
+@Category({"FOLIO", "Okapi"})
+@Description("Acquisition of an Okapi access token by a token provider or login")
+class OkapiTokenEvent extends Event {
+
+	@Label("Source")
+	@Description("The token provider class or the login path")
+	String source;
+	
+	@Label("Tenant")
+	String tenant;
+	
+	@Label("Success")
+	boolean success;
+	
+}
@@ -0,0 +1,196 @@
+package de.fau.ub.folio.connection;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**Limits the number of concurrent requests of a connection and hands out the slots by priority,
+ * @see {@link OkapiConnection#setScheduler(PriorityScheduler)}.
+ * 
+ * Part of the capacity is reserved for {@code INTERACTIVE} requests, so that they find a free slot 
+ * even if bulk jobs saturate the connection. When a slot becomes free, it goes to the waiting request
+ * of the highest priority. To prevent starvation, a request that has waited longer than the maximum wait
+ * is served before any request of a higher priority that has not.
+ * 
+ * Within a priority, requests are served in the order of arrival.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class PriorityScheduler {
+
+	private static class Waiter {
+		final long since = System.nanoTime();
+		boolean granted = false;
+	}
+	
+	private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+	
+	private final int capacity;
+	private final int reserved;
+	private long maxWaitNanos = Duration.ofSeconds(2).toNanos();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition granted = lock.newCondition();
+	private final ArrayDeque<Waiter>[] queues;
+	private final LaneMetrics[] metrics;
+	private int inFlight = 0;
+	
+	/** Creates a scheduler.
+	 * 
+	 * @param capacity the maximum number of concurrent requests
+	 * @param reservedForInteractive the number of slots only interactive requests may use
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PriorityScheduler(int capacity, int reservedForInteractive) {
+		super();
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+		if (reservedForInteractive < 0 || reservedForInteractive >= capacity) {
+			throw new IllegalArgumentException("reserved capacity must be between 0 and capacity - 1");
+		}
+		this.capacity = capacity;
+		this.reserved = reservedForInteractive;
+		this.queues = new ArrayDeque[PRIORITIES.length];
+		this.metrics = new LaneMetrics[PRIORITIES.length];
+		for (RequestPriority priority : PRIORITIES) {
+			queues[priority.ordinal()] = new ArrayDeque<>();
+			metrics[priority.ordinal()] = new LaneMetrics(priority);
+		}
+	}
+	
+	/** Sets the wait after which a request is served regardless of its priority.
+	 * 
+	 * @param maxWait the maximum wait; defaults to 2 seconds
+	 */
+	public void setMaxWait(Duration maxWait) {
+		lock.lock();
+		try {
+			this.maxWaitNanos = maxWait.toNanos();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Returns the metrics of a priority.
+	 * 
+	 * @param priority the priority
+	 * @return the metrics, which are updated continuously
+	 */
+	public LaneMetrics metrics(RequestPriority priority) {
+		return metrics[priority.ordinal()];
+	}
+	
+	/** Waits for a slot.
+	 * 
+	 * @param priority the priority of the request
+	 * @return the time waited in nanoseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	long acquire(RequestPriority priority) throws InterruptedException {
+		int lane = priority.ordinal();
+		LaneMetrics laneMetrics = metrics[lane];
+		lock.lock();
+		try {
+			if (!waitersAtOrAbove(lane) && admissible(lane)) {
+				grant(lane);
+				laneMetrics.recordWait(0);
+				return 0;
+			}
+			Waiter waiter = new Waiter();
+			queues[lane].add(waiter);
+			laneMetrics.queueDepth = queues[lane].size();
+			while (!waiter.granted) {
+				try {
+					granted.await();
+				} catch (InterruptedException e) {
+					if (waiter.granted) {
+						// too late, we have the slot; we keep it and leave the interrupt to the request
+						Thread.currentThread().interrupt();
+						break;
+					}
+					queues[lane].remove(waiter);
+					laneMetrics.queueDepth = queues[lane].size();
+					throw e;
+				}
+			}
+			long wait = System.nanoTime() - waiter.since;
+			laneMetrics.recordWait(wait);
+			return wait;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Returns a slot.
+	 * 
+	 * @param priority the priority the slot was acquired with
+	 */
+	void release(RequestPriority priority) {
+		lock.lock();
+		try {
+			inFlight--;
+			metrics[priority.ordinal()].inFlight--;
+			dispatch();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Hands out free slots to waiting requests.
+	 */
+	private void dispatch() {
+		boolean any = false;
+		while (true) {
+			int next = -1;
+			long now = System.nanoTime();
+			// requests that have waited too long go first, the oldest of them first
+			for (int lane = 0; lane < queues.length; lane++) {
+				Waiter head = queues[lane].peek();
+				if (head != null && admissible(lane) && now - head.since > maxWaitNanos 
+						&& (next == -1 || head.since < queues[next].peek().since)) {
+					next = lane;
+				}
+			}
+			if (next == -1) {
+				for (int lane = 0; lane < queues.length; lane++) {
+					if (!queues[lane].isEmpty() && admissible(lane)) {
+						next = lane;
+						break;
+					}
+				}
+			}
+			if (next == -1) break;
+			queues[next].poll().granted = true;
+			metrics[next].queueDepth = queues[next].size();
+			grant(next);
+			any = true;
+		}
+		if (any) granted.signalAll();
+	}
+	
+	private boolean admissible(int lane) {
+		return inFlight < (lane == RequestPriority.INTERACTIVE.ordinal() ? capacity : capacity - reserved);
+	}
+	
+	private boolean waitersAtOrAbove(int lane) {
+		for (int l = 0; l <= lane; l++) {
+			if (!queues[l].isEmpty()) return true;
+		}
+		return false;
+	}
+	
+	private void grant(int lane) {
+		inFlight++;
+		metrics[lane].inFlight++;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("capacity ").append(capacity).append(", reserved ").append(reserved);
+		for (LaneMetrics m : metrics) {
+			sb.append("\n  ").append(m);
+		}
+		return sb.toString();
+	}
+	
+}
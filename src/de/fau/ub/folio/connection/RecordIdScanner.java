@@ -0,0 +1,171 @@
+package de.fau.ub.folio.connection;
+
+import java.nio.charset.StandardCharsets;
+
+/**Extracts the ids of the records in a collection response directly from the response body.
+ *
+ * Okapi returns collections as a JSON object with the records in an array, e.g.
+ * <code>{"instances": [{"id": "...", ...}, ...], "totalRecords": 42}</code>.
+ * This scanner walks the raw bytes of such a response and reports the {@code id} of each
+ * record without building JSON objects, which saves both time and memory when only the ids
+ * are of interest.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public final class RecordIdScanner {
+
+	/** Receives the ids found by the scanner.
+	 * The id is passed as a slice of the response body, ie. as UTF-8 bytes without quotes.
+	 */
+	public interface IdConsumer {
+		public void accept(byte[] buffer, int offset, int length);
+	}
+
+	private static final byte[] ID = "id".getBytes(StandardCharsets.UTF_8);
+
+	private final byte[] json;
+	private int pos = 0;
+
+	private RecordIdScanner(byte[] json) {
+		this.json = json;
+	}
+
+	/** Scans a collection response for the ids of its records.
+	 *
+	 * @param json the response body
+	 * @param collectionKey the key of the record array, e.g. "instances"
+	 * @param consumer receives the id of each record that has one
+	 * @return the number of records in the array
+	 * @throws IllegalArgumentException if the body is not a JSON object
+	 */
+	public static int scan(byte[] json, String collectionKey, IdConsumer consumer) {
+		return new RecordIdScanner(json).scanCollection(collectionKey.getBytes(StandardCharsets.UTF_8), consumer);
+	}
+
+	private int scanCollection(byte[] collectionKey, IdConsumer consumer) {
+		int count = 0;
+		expect('{');
+		if (peek() == '}') return 0;
+		do {
+			int keyStart = pos + 1;
+			skipString();
+			boolean match = equals(keyStart, pos - 1, collectionKey);
+			expect(':');
+			if (match && peek() == '[') {
+				pos++;
+				if (peek() != ']') {
+					do {
+						count++;
+						if (peek() == '{') {
+							scanRecord(consumer);
+						}
+						else {
+							skipValue();
+						}
+					} while (next() == ',');
+				}
+				else {
+					pos++;
+				}
+			}
+			else {
+				skipValue();
+			}
+		} while (next() == ',');
+		return count;
+	}
+
+	private void scanRecord(IdConsumer consumer) {
+		expect('{');
+		if (peek() == '}') {
+			pos++;
+			return;
+		}
+		do {
+			int keyStart = pos + 1;
+			skipString();
+			boolean isId = equals(keyStart, pos - 1, ID);
+			expect(':');
+			if (isId && peek() == '"') {
+				int start = pos + 1;
+				skipString();
+				consumer.accept(json, start, pos - 1 - start);
+			}
+			else {
+				skipValue();
+			}
+		} while (next() == ',');
+	}
+
+	/** Returns the next non-whitespace character without consuming it.
+	 */
+	private byte peek() {
+		while (pos < json.length && json[pos] <= ' ') pos++;
+		if (pos >= json.length) throw new IllegalArgumentException("unexpected end of JSON");
+		return json[pos];
+	}
+
+	/** Consumes and returns the next non-whitespace character.
+	 */
+	private byte next() {
+		byte b = peek();
+		pos++;
+		return b;
+	}
+
+	private void expect(char c) {
+		if (next() != c) throw new IllegalArgumentException("expected '" + c + "' at position " + (pos - 1));
+	}
+
+	/** Skips a string including its quotes.
+	 */
+	private void skipString() {
+		expect('"');
+		while (pos < json.length) {
+			byte b = json[pos++];
+			if (b == '\\') {
+				pos++;
+			}
+			else if (b == '"') {
+				return;
+			}
+		}
+		throw new IllegalArgumentException("unterminated string");
+	}
+
+	/** Skips any JSON value.
+	 */
+	private void skipValue() {
+		byte b = peek();
+		if (b == '"') {
+			skipString();
+		}
+		else if (b == '{' || b == '[') {
+			int depth = 0;
+			do {
+				b = peek();
+				if (b == '"') {
+					skipString();
+					continue;
+				}
+				if (b == '{' || b == '[') depth++;
+				else if (b == '}' || b == ']') depth--;
+				pos++;
+			} while (depth > 0);
+		}
+		else {
+			// number, true, false, null
+			while (pos < json.length && json[pos] != ',' && json[pos] != '}' && json[pos] != ']' && json[pos] > ' ') pos++;
+		}
+	}
+
+	private boolean equals(int start, int end, byte[] key) {
+		if (end - start != key.length) return false;
+		for (int i = 0; i < key.length; i++) {
+			if (json[start + i] != key[i]) return false;
+		}
+		return true;
+	}
+
+}
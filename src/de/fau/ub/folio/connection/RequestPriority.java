@@ -0,0 +1,23 @@
+package de.fau.ub.folio.connection;
+
+/**The priority classes of requests, @see {@code PriorityScheduler}.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public enum RequestPriority {
+	
+	/** Requests a user is waiting for, e.g. a lookup at the circulation desk.
+	 * Interactive requests are served first and may use the reserved capacity.
+	 */
+	INTERACTIVE,
+	
+	/** The default.
+	 */
+	NORMAL,
+	
+	/** Background work like batch loads, bulk updates and write-behind queues.
+	 */
+	BULK
+	
+}
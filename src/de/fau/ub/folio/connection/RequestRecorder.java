@@ -0,0 +1,32 @@
+package de.fau.ub.folio.connection;
+
+import java.util.Map;
+
+/**Receives the requests sent through an {@code OkapiConnection}, @see {@link OkapiConnection#setRecorder(RequestRecorder)}.
+ * 
+ * The method is called from the threads that send the requests and must be thread-safe.
+ * It is called after the request has completed, including retries, and should return quickly.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public interface RequestRecorder {
+
+	/** Records a request.
+	 * 
+	 * @param method the HTTP method
+	 * @param path the path of the API endpoint
+	 * @param parameters the URL parameters; may be null
+	 * @param headers the custom headers given by the caller; may be null
+	 * @param contentType the content type of the request body; may be null
+	 * @param body the request body; may be null
+	 * @param status the HTTP status of the response or -1 if there was none
+	 * @param responseBody the body of a successful response; null otherwise
+	 * @param requestId the {@code X-Okapi-Request-Id} of a successful request; null otherwise
+	 * @param startMillis the time the request was issued, in milliseconds since the epoch
+	 * @param durationNanos the duration of the request
+	 */
+	public void record(String method, String path, Map<String, String> parameters, Map<String, String> headers, 
+			String contentType, byte[] body, int status, byte[] responseBody, String requestId, long startMillis, long durationNanos);
+	
+}
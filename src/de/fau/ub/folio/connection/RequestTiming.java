@@ -0,0 +1,76 @@
+package de.fau.ub.folio.connection;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**The timing breakdown of a request to Okapi.
+ * 
+ * The phases are measured on the client side, one after the other:
+ * <ol>
+ * <li>queue wait: time before the connection was started, e.g. for waiting for a slot of the
+ * 	   {@code PriorityScheduler} or for an access token</li>
+ * <li>connect: host name resolution and TCP connect</li>
+ * <li>TLS: the TLS handshake</li>
+ * <li>time to first byte: from sending the request until the response status arrived, 
+ * 	   this is mostly the time spent by Okapi and the modules</li>
+ * <li>download: reading the response body</li>
+ * <li>parse: parsing the body as JSON, if done by the response; the sum of all parses, as a response
+ * 	   shared by coalesced requests may be parsed by several threads at the same time</li>
+ * </ol>
+ * Connect and TLS are zero if a kept-alive connection was reused.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class RequestTiming {
+
+	long queueWait;
+	long connect;
+	long tls;
+	long timeToFirstByte;
+	long download;
+	final AtomicLong parse = new AtomicLong();
+	
+	RequestTiming() {
+		super();
+	}
+	
+	public Duration queueWait() {
+		return Duration.ofNanos(queueWait);
+	}
+	
+	public Duration connect() {
+		return Duration.ofNanos(connect);
+	}
+	
+	public Duration tls() {
+		return Duration.ofNanos(tls);
+	}
+	
+	public Duration timeToFirstByte() {
+		return Duration.ofNanos(timeToFirstByte);
+	}
+	
+	public Duration download() {
+		return Duration.ofNanos(download);
+	}
+	
+	public Duration parse() {
+		return Duration.ofNanos(parse.get());
+	}
+	
+	/** Returns the sum of all phases.
+	 * 
+	 * @return the total duration
+	 */
+	public Duration total() {
+		return Duration.ofNanos(queueWait + connect + tls + timeToFirstByte + download + parse.get());
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("queue=%.1fms connect=%.1fms tls=%.1fms ttfb=%.1fms download=%.1fms parse=%.1fms",
+				queueWait / 1e6, connect / 1e6, tls / 1e6, timeToFirstByte / 1e6, download / 1e6, parse.get() / 1e6);
+	}
+	
+}
@@ -0,0 +1,83 @@
+package de.fau.ub.folio.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**An {@code SSLSocketFactory} that records when a TCP connection is layered with TLS.
+ * 
+ * {@code HttpsURLConnection} connects a plain socket if the factory cannot
+ * create unconnected sockets and then layers TLS on top of it, followed by the handshake. 
+ * The time of layering thus separates the TCP connect from the TLS handshake.
+ * The time is recorded per thread as connecting happens on the thread that sends the request.
+ * 
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+class TimingSSLSocketFactory extends SSLSocketFactory {
+
+	private static final ThreadLocal<Long> layered = new ThreadLocal<>();
+	
+	private final SSLSocketFactory delegate;
+	
+	TimingSSLSocketFactory(SSLSocketFactory delegate) {
+		super();
+		this.delegate = delegate;
+	}
+	
+	/** Resets the recorded time for the current thread. */
+	static void reset() {
+		layered.remove();
+	}
+	
+	/** Returns the time when TLS was layered on the current thread's connection.
+	 * 
+	 * @return the time as {@code System.nanoTime()} or -1 if no TLS connection has been set up
+	 */
+	static long layeredAt() {
+		Long time = layered.get();
+		return time == null ? -1 : time;
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		layered.set(System.nanoTime());
+		return delegate.createSocket(s, host, port, autoClose);
+	}
+
+	// createSocket() is deliberately not overridden: the inherited method refuses to create 
+	// unconnected sockets, so that HttpsURLConnection falls back to layering
+	
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return delegate.createSocket(host, port, localHost, localPort);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return delegate.createSocket(address, port, localAddress, localPort);
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+
+}
@@ -0,0 +1,98 @@
+package de.fau.ub.folio.connection;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**The outcome of warming up an {@code OkapiConnection}, @see OkapiConnection#warmUp(int).
+ *
+ * The phases run one after the other: resolving the host names of the nodes, opening connections
+ * to the nodes (TCP connect and TLS handshake) and acquiring an access token. Connections are
+ * opened in parallel, so the duration of that phase is about that of the slowest connection.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class WarmUpReport {
+
+	final Map<URI, Long> dns = new LinkedHashMap<>();
+	long connectPhase;
+	final List<RequestTiming> connections = new ArrayList<>();
+	int failedConnections;
+	long token;
+	long total;
+
+	WarmUpReport() {
+		super();
+	}
+
+	/** Returns the time it took to resolve the host name of each node.
+	 *
+	 * @return the durations by node; zero for nodes given by IP address
+	 */
+	public Map<URI, Duration> dns() {
+		Map<URI, Duration> result = new LinkedHashMap<>();
+		dns.forEach((uri, nanos) -> result.put(uri, Duration.ofNanos(nanos)));
+		return result;
+	}
+
+	/** Returns the time it took to open all connections.
+	 *
+	 * @return the duration of the phase
+	 */
+	public Duration connectPhase() {
+		return Duration.ofNanos(connectPhase);
+	}
+
+	/** Returns the timing of each connection that has been opened.
+	 *
+	 * Only connect, TLS and time to first byte are set.
+	 *
+	 * @return the timings
+	 */
+	public List<RequestTiming> connections() {
+		return Collections.unmodifiableList(connections);
+	}
+
+	/** Returns the number of connections that could not be opened.
+	 *
+	 * @return the number of failed connections
+	 */
+	public int failedConnections() {
+		return failedConnections;
+	}
+
+	/** Returns the time it took to acquire the access token.
+	 *
+	 * @return the duration; about zero if the connection already had a token
+	 */
+	public Duration token() {
+		return Duration.ofNanos(token);
+	}
+
+	/** Returns the duration of the whole warm-up.
+	 *
+	 * @return the duration
+	 */
+	public Duration total() {
+		return Duration.ofNanos(total);
+	}
+
+	@Override
+	public String toString() {
+		long dnsTotal = dns.values().stream().mapToLong(Long::longValue).sum();
+		long connectMax = 0;
+		long tlsMax = 0;
+		for (RequestTiming timing : connections) {
+			connectMax = Math.max(connectMax, timing.connect);
+			tlsMax = Math.max(tlsMax, timing.tls);
+		}
+		return String.format("warm-up %.1fms: dns=%.1fms connections=%d (%d failed) in %.1fms (connect max %.1fms, tls max %.1fms) token=%.1fms",
+				total / 1e6, dnsTotal / 1e6, connections.size(), failedConnections, connectPhase / 1e6, connectMax / 1e6, tlsMax / 1e6, token / 1e6);
+	}
+
+}
@@ -3,11 +3,20 @@ package de.fau.ub.folio.connection.browserAuth;
 import java.awt.Desktop;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 import de.fau.ub.folio.connection.AuthenticationException;
 import de.fau.ub.folio.connection.OkapiConnection;
@@ -28,6 +37,7 @@ public abstract class BrowserTokenProvider implements TokenProvider {
 	protected String lockFilename = "token_lock";
 	protected String tokenFilename = "token_content";
 	protected Path directory;
+	protected Duration tokenTimeout = Duration.ofMinutes(5);
 	protected File lockFile;
 	protected FileLock lock;
 	protected FileOutputStream fos;
@@ -58,17 +68,24 @@ public abstract class BrowserTokenProvider implements TokenProvider {
 		}
 		else {
 			// get a new token:
-			// first, open Stripes in browser
-			// second wait till a new token arrives
-			try {
-				Desktop.getDesktop().browse(stripesUri);
-			} catch (IOException e) {
-				throw new AuthenticationException("Error opening browser", e);
-			}
-			try {
-				token = awaitToken();
+			// first, start watching the directory so that we cannot miss the token
+			// second, open Stripes in browser
+			// third, wait till a new token arrives
+			try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+				directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				// discard a token that may be left over from an earlier run
+				Files.deleteIfExists(directory.resolve(tokenFilename));
+				try {
+					Desktop.getDesktop().browse(stripesUri);
+				} catch (IOException e) {
+					throw new AuthenticationException("Error opening browser", e);
+				}
+				token = awaitToken(watcher);
 			} catch (IOException e) {
 				throw new AuthenticationException("Error waiting for token", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AuthenticationException("interrupted while waiting for token", e);
 			}
 		}
 		if (token == null) throw new AuthenticationException("something went wrong while authenticating using browser");
@@ -101,20 +118,90 @@ public abstract class BrowserTokenProvider implements TokenProvider {
 	}
 
 
-	protected String awaitToken() throws IOException {
-		// TODO: write method
-		return null;
+	/** Sets the maximum time to wait for a token forwarded by another instance.
+	 * 
+	 * @param tokenTimeout the timeout; defaults to 5 minutes
+	 */
+	public void setTokenTimeout(Duration tokenTimeout) {
+		if (tokenTimeout == null || tokenTimeout.isNegative() || tokenTimeout.isZero()) throw new IllegalArgumentException("timeout must be positive");
+		this.tokenTimeout = tokenTimeout;
 	}
 
 
+	/** Waits until another instance forwards a token via {@code forwardToken()}.
+	 * 
+	 * The token file is written atomically by {@code forwardToken()}, so it suffices to
+	 * react on the create/modify events for the token file. The events are delivered by
+	 * the watch service as soon as the file system reports them, which avoids the latency 
+	 * of polling.
+	 * 
+	 * @param watcher a watch service that is registered on the directory <i>before</i> 
+	 * 		  the token has been requested from the browser
+	 * @return the token or null if no token arrived within the timeout
+	 * @throws IOException if the token file cannot be read
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	protected String awaitToken(WatchService watcher) throws IOException, InterruptedException {
+		Path tokenFile = directory.resolve(tokenFilename);
+		long deadline = System.nanoTime() + tokenTimeout.toNanos();
+		// the token may have arrived between registering and now
+		String token = readToken(tokenFile);
+		while (token == null) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) return null;
+			WatchKey key = watcher.poll(remaining, TimeUnit.NANOSECONDS);
+			if (key == null) return null;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				// on overflow, we don't know which files changed, so we just check
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW || tokenFilename.equals(event.context().toString())) {
+					token = readToken(tokenFile);
+					if (token != null) break;
+				}
+			}
+			if (!key.reset()) throw new IOException("directory " + directory + " is no longer accessible");
+		}
+		return token;
+	}
+	
+	
+	/** Reads and consumes the token file.
+	 * 
+	 * @param tokenFile the token file
+	 * @return the token or null if there is no (non-empty) token file
+	 * @throws IOException if the file cannot be read
+	 */
+	private String readToken(Path tokenFile) throws IOException {
+		String token;
+		try {
+			token = Files.readString(tokenFile, StandardCharsets.UTF_8).strip();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		Files.deleteIfExists(tokenFile);
+		return token.isEmpty() ? null : token;
+	}
+
+
+	/** Hands a token over to the registered instance waiting in {@code awaitToken()}.
+	 * 
+	 * The token is first written to a temporary file, which is then moved atomically
+	 * to the token file, so that the waiting instance never sees a partially written token.
+	 * 
+	 * @param token the token
+	 */
 	public void forwardToken(String token) {
+		Path tmpFile = null;
 		try {
-			File tokenFile = directory.resolve(lockFilename).toFile();
-			FileWriter fw = new FileWriter(tokenFile);
-			fw.write(token);
-			fw.close();
+			tmpFile = Files.createTempFile(directory, tokenFilename, ".tmp");
+			Files.writeString(tmpFile, token, StandardCharsets.UTF_8);
+			Files.move(tmpFile, directory.resolve(tokenFilename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 		} catch (IOException e) {
-			throw new TokenForwardingException();
+			try {
+				if (tmpFile != null) Files.deleteIfExists(tmpFile);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw new TokenForwardingException("cannot forward token", e);
 		}
 	}
 
@@ -0,0 +1,285 @@
+package de.fau.ub.folio.connection.dataImport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.OkapiConnection;
+import de.fau.ub.folio.connection.RequestPriority;
+
+/**Uploads a file, e.g. of MARC records, to mod-data-import in parallel parts.
+ *
+ * The upload follows the flow of the data import app for large files:
+ * <ol>
+ * <li>an upload definition for the file is created,</li>
+ * <li>the file is split into parts, and each part is uploaded with a PUT to a pre-signed URL of the
+ *     object storage, which is obtained from <code>data-import/uploadUrl</code> for the first part and from
+ *     <code>data-import/uploadUrl/subsequent</code> for the others,</li>
+ * <li>the parts are assembled into the file with <code>assembleStorageFile</code>.</li>
+ * </ol>
+ * This requires mod-data-import to be set up with an object storage (S3), ie. with file splitting enabled.
+ * The returned upload definition can then be used to start the import with a job profile.
+ *
+ * The parts are read as memory-mapped slices of the file and streamed to the storage, so the heap
+ * does not grow with the size of the file or the part. A part that fails is uploaded again with a fresh
+ * URL, up to the given number of retries. If a part fails for good, the upload definition is deleted.
+ *
+ * Example:
+ * <pre>
+ * DataImportUploader uploader = new DataImportUploader(okapi);
+ * uploader.setParallelism(8);
+ * JSONObject uploadDefinition = uploader.upload(Path.of("records.mrc"));
+ * </pre>
+ *
+ * The requests to Okapi are sent with {@code RequestPriority.BULK}.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class DataImportUploader {
+
+	private static final String URL_UPLOAD_DEFINITIONS = "data-import/uploadDefinitions";
+	private static final String URL_UPLOAD_URL = "data-import/uploadUrl";
+	private static final String URL_UPLOAD_URL_SUBSEQUENT = "data-import/uploadUrl/subsequent";
+	/** the object storage rejects smaller parts, except for the last one */
+	private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+	private static final long BACKOFF_MILLIS = 1000;
+
+	private final OkapiConnection okapi;
+	private final Logger logger;
+	private int partSize = 32 * 1024 * 1024;
+	private int parallelism = 4;
+	private int retries = 3;
+
+	/** Creates an uploader.
+	 *
+	 * @param okapi the connection to Okapi
+	 */
+	public DataImportUploader(OkapiConnection okapi) {
+		super();
+		this.okapi = okapi;
+		this.logger = System.getLogger(this.getClass().getCanonicalName());
+	}
+
+	/** Sets the size of the parts the file is split into.
+	 *
+	 * @param partSize the size in bytes; at least 5 MiB, defaults to 32 MiB
+	 */
+	public void setPartSize(int partSize) {
+		if (partSize < MIN_PART_SIZE) throw new IllegalArgumentException("part size must be at least " + MIN_PART_SIZE + " bytes");
+		this.partSize = partSize;
+	}
+
+	/** Sets the number of parts that are uploaded at the same time.
+	 *
+	 * @param parallelism the number of parts; defaults to 4
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	/** Sets how often the upload of a part is retried.
+	 *
+	 * @param retries the number of retries; defaults to 3
+	 */
+	public void setRetries(int retries) {
+		if (retries < 0) throw new IllegalArgumentException("retries must not be negative");
+		this.retries = retries;
+	}
+
+	/** Uploads a file and waits until it has been assembled.
+	 *
+	 * @param file the file
+	 * @return the upload definition as returned by mod-data-import after the file has been assembled
+	 * @throws ConnectionException if a request to Okapi or the upload of a part failed
+	 * @throws IOException if the file cannot be read
+	 * @throws InterruptedException if interrupted while waiting for the parts
+	 */
+	public JSONObject upload(Path file) throws ConnectionException, IOException, InterruptedException {
+		String name = file.getFileName().toString();
+		long size = Files.size(file);
+		RequestPriority callerPriority = OkapiConnection.getCurrentPriority();
+		OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+		try {
+			JSONObject fileDefinition = new JSONObject()
+					.put("name", name)
+					// mod-data-import expects the size in kilobytes
+					.put("size", (size + 1023) / 1024);
+			JSONObject uploadDefinition = checkAccess(okapi.postJSON(URL_UPLOAD_DEFINITIONS, null,
+					new JSONObject().put("fileDefinitions", new JSONArray().put(fileDefinition))), URL_UPLOAD_DEFINITIONS);
+			String definitionId = uploadDefinition.getString("id");
+			String fileId = uploadDefinition.getJSONArray("fileDefinitions").getJSONObject(0).getString("id");
+			try {
+				JSONObject first = checkAccess(okapi.getJSON(URL_UPLOAD_URL, Map.of("filename", name), null), URL_UPLOAD_URL);
+				String key = first.getString("key");
+				String uploadId = first.getString("uploadId");
+				List<String> etags = uploadParts(file, size, first.getString("url"), key, uploadId);
+				JSONObject assemble = new JSONObject()
+						.put("uploadId", uploadId)
+						.put("key", key)
+						.put("tags", new JSONArray(etags));
+				String path = URL_UPLOAD_DEFINITIONS + "/" + definitionId + "/files/" + fileId + "/assembleStorageFile";
+				checkAccess(okapi.post(path, OkapiConnection.JSON_MIMETYPE, null, assemble.toString().getBytes(StandardCharsets.UTF_8)), path);
+				logger.log(Level.INFO, "uploaded " + name + " (" + size + " bytes) in " + etags.size() + " parts for upload definition " + definitionId);
+				String definitionPath = URL_UPLOAD_DEFINITIONS + "/" + definitionId;
+				return checkAccess(okapi.getJSON(definitionPath, null, null), definitionPath);
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				deleteDefinition(definitionId);
+				throw e;
+			}
+		} finally {
+			OkapiConnection.setCurrentPriority(callerPriority);
+		}
+	}
+
+	/** Uploads the parts of a file in parallel.
+	 *
+	 * @return the ETags of the parts in the order of the parts
+	 */
+	private List<String> uploadParts(Path file, long size, String firstUrl, String key, String uploadId) throws ConnectionException, IOException, InterruptedException {
+		int parts = (int) Math.max(1, (size + partSize - 1) / partSize);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, parts), r -> {
+			Thread t = new Thread(() -> {
+				OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+				r.run();
+			}, "okapi-upload-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		AtomicInteger done = new AtomicInteger();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			List<Future<String>> futures = new ArrayList<>(parts);
+			for (int i = 0; i < parts; i++) {
+				int partNumber = i + 1;
+				long offset = (long) i * partSize;
+				long length = Math.min(partSize, size - offset);
+				futures.add(executor.submit(() -> {
+					String etag = uploadPart(channel, partNumber, offset, length, partNumber == 1 ? firstUrl : null, key, uploadId);
+					logger.log(Level.DEBUG, "uploaded part " + partNumber + " (" + done.incrementAndGet() + " of " + parts + ") of " + file);
+					return etag;
+				}));
+			}
+			List<String> etags = new ArrayList<>(parts);
+			for (Future<String> future : futures) {
+				try {
+					etags.add(future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) throw (IOException) cause;
+					if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					throw new IllegalStateException("upload of part failed", cause);
+				}
+			}
+			return etags;
+		} finally {
+			// stops the remaining parts if one failed
+			executor.shutdownNow();
+		}
+	}
+
+	/** Uploads a part, retrying with a fresh URL if it fails.
+	 *
+	 * @param url the URL for the first attempt; null to request one
+	 * @return the ETag of the part
+	 */
+	private String uploadPart(FileChannel channel, int partNumber, long offset, long length, String url, String key, String uploadId) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				if (url == null) {
+					url = checkAccess(okapi.getJSON(URL_UPLOAD_URL_SUBSEQUENT, Map.of("key", key, "uploadId", uploadId, "partNumber", String.valueOf(partNumber)), null),
+							URL_UPLOAD_URL_SUBSEQUENT).getString("url");
+				}
+				return put(url, channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+			} catch (ConnectionException e) {
+				if (i >= retries) throw e;
+				logger.log(Level.WARNING, "upload of part " + partNumber + " failed, retrying", e);
+				// a pre-signed URL may have expired, so we get a fresh one
+				url = null;
+				Thread.sleep(BACKOFF_MILLIS << i);
+			}
+		}
+	}
+
+	/** Streams a part to a pre-signed URL of the object storage.
+	 *
+	 * @return the ETag of the part
+	 */
+	private String put(String url, MappedByteBuffer part) throws ConnectionException {
+		try {
+			HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+			con.setRequestMethod("PUT");
+			con.setRequestProperty("Content-Type", "application/octet-stream");
+			con.setDoOutput(true);
+			// streaming mode keeps HttpURLConnection from buffering the part on the heap
+			con.setFixedLengthStreamingMode(part.remaining());
+			try (OutputStream os = con.getOutputStream(); WritableByteChannel out = Channels.newChannel(os)) {
+				while (part.hasRemaining()) out.write(part);
+			}
+			int responseCode = con.getResponseCode();
+			if (responseCode / 100 != 2) {
+				String message = "";
+				if (con.getErrorStream() != null) {
+					try (InputStream in = con.getErrorStream()) {
+						message = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+					}
+				}
+				throw new ConnectionException("upload of part failed with HTTP code " + responseCode + " response error message being '" + message + "'", responseCode);
+			}
+			String etag = con.getHeaderField("ETag");
+			try (InputStream in = con.getInputStream()) {
+				in.readAllBytes();
+			}
+			if (etag == null) throw new ConnectionException("upload of part returned no ETag", responseCode);
+			return etag;
+		} catch (ConnectionException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ConnectionException("upload of part failed", e);
+		}
+	}
+
+	/** Turns the null returned by {@code OkapiConnection} if access is denied into an exception.
+	 */
+	private static <T> T checkAccess(T result, String path) throws ConnectionException {
+		if (result == null) throw new ConnectionException("access denied for path " + path, 403);
+		return result;
+	}
+
+	/** Deletes an upload definition after a failed upload; failures are only logged, so they do not hide the original one.
+	 */
+	private void deleteDefinition(String definitionId) {
+		String path = URL_UPLOAD_DEFINITIONS + "/" + definitionId;
+		try {
+			checkAccess(okapi.delete(path, null, null), path);
+		} catch (ConnectionException | RuntimeException e) {
+			logger.log(Level.WARNING, "cannot delete upload definition " + definitionId, e);
+		}
+	}
+
+}
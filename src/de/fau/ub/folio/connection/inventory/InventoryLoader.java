@@ -0,0 +1,444 @@
+package de.fau.ub.folio.connection.inventory;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.OkapiConnection;
+import de.fau.ub.folio.connection.RequestPriority;
+
+/**Loads instances, holdings records and items into FOLIO, with all three levels
+ * being loaded at the same time.
+ *
+ * Records of all levels may be added in any order. Each level has a stage that
+ * writes its records in batches. A holdings record is passed on to its stage as soon
+ * as its instance has been written; the same applies to items and their holdings records.
+ * Thus, the total load time approaches that of the slowest level instead of the sum of all
+ * levels. Stages are connected by bounded buffers, so that {@code add()} blocks
+ * if the writes cannot keep up.
+ *
+ * Holdings records and items whose parent is not added to the loader are assumed to refer
+ * to existing records. They are written after all records of the parent level have been written,
+ * ie. after {@code finish()} has been called, so they are kept in memory until then. The loader
+ * also remembers the ids of all records loaded, so that children can be added in any order.
+ *
+ * If the parents either exist in FOLIO or are added before their children, {@code setParentsExist(true)}
+ * lets the children of unknown parents go to their stage right away. The loader then only keeps
+ * the records that are still pending, so memory is bounded by the buffers. A child added after its
+ * parent failed is not recognized as such; it is written and rejected by FOLIO.
+ *
+ * If a batch is rejected, its records are written one by one to isolate the bad ones.
+ * Records that cannot be written are reported to the {@code FailureListener}, as are their
+ * descendants.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class InventoryLoader {
+
+	/** The levels of the inventory hierarchy.
+	 */
+	public enum RecordType {
+		INSTANCE("instance-storage/instances", "instance-storage/batch/synchronous", "instances", null),
+		HOLDINGS("holdings-storage/holdings", "holdings-storage/batch/synchronous", "holdingsRecords", "instanceId"),
+		ITEM("item-storage/items", "item-storage/batch/synchronous", "items", "holdingsRecordId");
+
+		private final String path;
+		private final String batchPath;
+		private final String collectionKey;
+		private final String parentField;
+
+		private RecordType(String path, String batchPath, String collectionKey, String parentField) {
+			this.path = path;
+			this.batchPath = batchPath;
+			this.collectionKey = collectionKey;
+			this.parentField = parentField;
+		}
+	}
+
+	/** Is notified about records that could not be loaded.
+	 */
+	public interface FailureListener {
+		public void failed(RecordType type, JSONObject record, Exception e);
+	}
+
+	private static final long LINGER_MILLIS = 50;
+	private static final int RETRIES = 3;
+	private static final long BACKOFF_MILLIS = 1000;
+
+	private final OkapiConnection okapi;
+	private final int batchSize;
+	private final int bufferSize;
+	private final Logger logger;
+	private final Stage[] stages;
+	private FailureListener failureListener;
+
+	// the state of the hierarchy, guarded by lock
+	private final Object lock = new Object();
+	/** records that have been put into a buffer or are being written, but are neither confirmed nor failed */
+	private final Map<RecordType, Set<String>> queued = new HashMap<>();
+	/** records with children that have been added, but are neither confirmed nor failed */
+	private final Map<RecordType, Set<String>> pending = new HashMap<>();
+	private final Map<RecordType, Set<String>> confirmed = new HashMap<>();
+	private final Map<RecordType, Set<String>> failed = new HashMap<>();
+	private final Map<RecordType, Map<String, List<JSONObject>>> waiting = new HashMap<>();
+	/** number of children waiting for a parent that is released without more records being added, used for back-pressure */
+	private int waitingForQueued = 0;
+	private boolean finished = false;
+	private boolean parentsExist = false;
+
+	/** A level's buffer and the threads writing from it.
+	 */
+	private class Stage {
+		private final RecordType type;
+		private final BlockingQueue<JSONObject> buffer;
+		private final Thread[] writers;
+		private volatile boolean closed = false;
+		private final AtomicLong loaded = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+
+		private Stage(RecordType type, int writers) {
+			this.type = type;
+			this.buffer = new ArrayBlockingQueue<>(bufferSize);
+			this.writers = new Thread[writers];
+			for (int i = 0; i < writers; i++) {
+				this.writers[i] = new Thread(this::write, "inventory-loader-" + type.name().toLowerCase() + "-" + i);
+				this.writers[i].setDaemon(true);
+			}
+		}
+
+		private void write() {
+			// loading is background work that must not crowd out interactive requests
+			OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+			List<JSONObject> batch = new ArrayList<>(batchSize);
+			while (true) {
+				try {
+					JSONObject first = buffer.poll(LINGER_MILLIS, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						if (closed && buffer.isEmpty()) return;
+						continue;
+					}
+					batch.add(first);
+					buffer.drainTo(batch, batchSize - 1);
+					try {
+						writeBatch(this, batch);
+					} catch (RuntimeException e) {
+						// the writer must keep running, or the records in the buffer would never be released
+						for (JSONObject record : batch) fail(type, record, e);
+					}
+					batch.clear();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private void close() throws InterruptedException {
+			closed = true;
+			for (Thread writer : writers) writer.join();
+		}
+	}
+
+	/** Creates a loader that writes batches of 100 records with two writers per level.
+	 *
+	 * @param okapi the connection to load the records with
+	 */
+	public InventoryLoader(OkapiConnection okapi) {
+		this(okapi, 100, 2, 1000);
+	}
+
+	/** Creates a loader.
+	 *
+	 * @param okapi the connection to load the records with
+	 * @param batchSize the maximum number of records per batch request
+	 * @param writers the number of batches per level that are written in parallel
+	 * @param bufferSize the capacity of the buffer of each level
+	 */
+	public InventoryLoader(OkapiConnection okapi, int batchSize, int writers, int bufferSize) {
+		super();
+		if (batchSize < 1 || writers < 1 || bufferSize < 1) throw new IllegalArgumentException("batch size, writers and buffer size must be positive");
+		this.okapi = okapi;
+		this.batchSize = batchSize;
+		this.bufferSize = bufferSize;
+		this.logger = System.getLogger(this.getClass().getCanonicalName());
+		this.failureListener = (type, record, e) ->
+			logger.log(Level.ERROR, "cannot load " + type.name().toLowerCase() + " " + record.optString("id"), e);
+		this.stages = new Stage[RecordType.values().length];
+		for (RecordType type : RecordType.values()) {
+			queued.put(type, new HashSet<>());
+			pending.put(type, new HashSet<>());
+			confirmed.put(type, new HashSet<>());
+			failed.put(type, new HashSet<>());
+			waiting.put(type, new HashMap<>());
+			stages[type.ordinal()] = new Stage(type, writers);
+		}
+		for (Stage stage : stages) {
+			for (Thread writer : stage.writers) writer.start();
+		}
+	}
+
+	/** Sets the listener for records that cannot be loaded.
+	 *
+	 * @param failureListener the listener; by default, failures are logged
+	 */
+	public void setFailureListener(FailureListener failureListener) {
+		this.failureListener = failureListener;
+	}
+
+	/** Declares whether the parent of each record either exists in FOLIO or is added before the record.
+	 *
+	 * Then, a record whose parent is not pending in this loader is written right away instead of
+	 * waiting for {@code finish()}, and the ids of loaded records are not kept.
+	 *
+	 * Must be called before records are added.
+	 *
+	 * @param parentsExist true if the parents exist or are added first; defaults to false
+	 */
+	public void setParentsExist(boolean parentsExist) {
+		synchronized (lock) {
+			this.parentsExist = parentsExist;
+		}
+	}
+
+	/** Adds a record to be loaded.
+	 *
+	 * Records without an id get a random one, so that they can be tracked.
+	 * This method blocks if the buffers are full.
+	 *
+	 * @param type the type of the record
+	 * @param record the record
+	 * @throws InterruptedException if interrupted while waiting for buffer space
+	 */
+	public void add(RecordType type, JSONObject record) throws InterruptedException {
+		String id = record.optString("id", null);
+		if (id == null) {
+			id = UUID.randomUUID().toString();
+			record.put("id", id);
+		}
+		boolean ready;
+		synchronized (lock) {
+			checkNotFinished();
+			RecordType parentType = type.parentField == null ? null : RecordType.values()[type.ordinal() - 1];
+			String parentId = type.parentField == null ? null : record.optString(type.parentField, null);
+			// only children of parents that will be released without adding more records wait for buffer space:
+			// queued parents or, if the parents exist or are added first, all pending ones
+			while (parentId != null && releasesChildren(parentType, parentId) && waitingForQueued >= bufferSize) lock.wait();
+			if (parentId == null) {
+				ready = true;
+			}
+			else if (failed.get(parentType).contains(parentId)) {
+				// also fails the children that arrived before this record
+				fail(type, record, new ConnectionException("parent " + parentId + " could not be loaded"));
+				return;
+			}
+			else if (confirmed.get(parentType).contains(parentId) || (parentsExist && !pending.get(parentType).contains(parentId))) {
+				ready = true;
+			}
+			else {
+				if (releasesChildren(parentType, parentId)) waitingForQueued++;
+				waiting.get(type).computeIfAbsent(parentId, k -> new ArrayList<>()).add(record);
+				ready = false;
+			}
+			if (type.ordinal() + 1 < stages.length) pending.get(type).add(id);
+			if (ready) setQueued(type, id);
+		}
+		if (ready) stages[type.ordinal()].buffer.put(record);
+	}
+
+	/** Adds an instance to be loaded, @see {@code add()}.
+	 */
+	public void addInstance(JSONObject instance) throws InterruptedException {
+		add(RecordType.INSTANCE, instance);
+	}
+
+	/** Adds a holdings record to be loaded, @see {@code add()}.
+	 */
+	public void addHoldingsRecord(JSONObject holdingsRecord) throws InterruptedException {
+		add(RecordType.HOLDINGS, holdingsRecord);
+	}
+
+	/** Adds an item to be loaded, @see {@code add()}.
+	 */
+	public void addItem(JSONObject item) throws InterruptedException {
+		add(RecordType.ITEM, item);
+	}
+
+	/** Signals that all records have been added and waits until they have been loaded.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void finish() throws InterruptedException {
+		synchronized (lock) {
+			finished = true;
+		}
+		for (Stage stage : stages) {
+			stage.close();
+			// all parents have been written: the remaining children refer to records
+			// that existed before, so they can be loaded now
+			if (stage.type.ordinal() + 1 < stages.length) {
+				Stage next = stages[stage.type.ordinal() + 1];
+				List<JSONObject> orphans = new ArrayList<>();
+				synchronized (lock) {
+					waiting.get(next.type).values().forEach(orphans::addAll);
+					waiting.get(next.type).clear();
+					for (JSONObject orphan : orphans) setQueued(next.type, orphan.getString("id"));
+				}
+				for (JSONObject orphan : orphans) next.buffer.put(orphan);
+			}
+		}
+	}
+
+	/** Returns the number of records of a type that have been loaded.
+	 *
+	 * @param type the record type
+	 * @return the number of records
+	 */
+	public long loaded(RecordType type) {
+		return stages[type.ordinal()].loaded.get();
+	}
+
+	/** Returns the number of records of a type that could not be loaded.
+	 *
+	 * @param type the record type
+	 * @return the number of records
+	 */
+	public long failed(RecordType type) {
+		return stages[type.ordinal()].failures.get();
+	}
+
+	private void checkNotFinished() {
+		if (finished) throw new IllegalStateException("loader has been finished");
+	}
+
+	/** Marks a record as queued, so that the children waiting for it count for back-pressure.
+	 * Must be called with the lock held.
+	 */
+	private void setQueued(RecordType type, String id) {
+		// records of the last level have no children
+		if (type.ordinal() + 1 == stages.length) return;
+		queued.get(type).add(id);
+		if (parentsExist) return;
+		List<JSONObject> children = waiting.get(RecordType.values()[type.ordinal() + 1]).get(id);
+		if (children != null) waitingForQueued += children.size();
+	}
+
+	/** Checks whether a parent will release its children without more records being added, so they count for back-pressure.
+	 * Must be called with the lock held.
+	 */
+	private boolean releasesChildren(RecordType type, String id) {
+		return parentsExist ? pending.get(type).contains(id) : queued.get(type).contains(id);
+	}
+
+	/** Writes a batch, falling back to writing single records if the batch is rejected.
+	 */
+	private void writeBatch(Stage stage, List<JSONObject> batch) throws InterruptedException {
+		RecordType type = stage.type;
+		JSONObject body = new JSONObject().put(type.collectionKey, new JSONArray(batch));
+		try {
+			post(type.batchPath, body);
+			for (JSONObject record : batch) confirm(stage, record);
+		} catch (ConnectionException e) {
+			logger.log(Level.WARNING, "batch of " + batch.size() + " " + type.collectionKey + " rejected, loading them one by one");
+			for (JSONObject record : batch) {
+				try {
+					post(type.path, record);
+					confirm(stage, record);
+				} catch (ConnectionException | RuntimeException e1) {
+					fail(type, record, e1);
+				}
+			}
+		}
+	}
+
+	/** Posts a JSON body, retrying on temporary failures.
+	 */
+	private void post(String path, JSONObject body) throws ConnectionException, InterruptedException {
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; ; i++) {
+			try {
+				if (okapi.post(path, OkapiConnection.JSON_MIMETYPE, null, bytes) == null) {
+					throw new ConnectionException("access denied for path " + path, 403);
+				}
+				return;
+			} catch (ConnectionException e) {
+				int code = e.getHttpCode();
+				if (i >= RETRIES || (code != -1 && code != 429 && code < 500)) throw e;
+				Thread.sleep(BACKOFF_MILLIS << i);
+			}
+		}
+	}
+
+	/** Marks a record as loaded and releases its children.
+	 */
+	private void confirm(Stage stage, JSONObject record) throws InterruptedException {
+		stage.loaded.incrementAndGet();
+		if (stage.type.ordinal() + 1 == stages.length) return;
+		Stage next = stages[stage.type.ordinal() + 1];
+		String id = record.getString("id");
+		List<JSONObject> children;
+		synchronized (lock) {
+			if (!parentsExist) confirmed.get(stage.type).add(id);
+			queued.get(stage.type).remove(id);
+			pending.get(stage.type).remove(id);
+			children = waiting.get(next.type).remove(id);
+			if (children != null) {
+				waitingForQueued -= children.size();
+				for (JSONObject child : children) setQueued(next.type, child.getString("id"));
+				lock.notifyAll();
+			}
+		}
+		if (children != null) {
+			for (JSONObject child : children) next.buffer.put(child);
+		}
+	}
+
+	/** Marks a record and all its descendants as failed.
+	 */
+	private void fail(RecordType type, JSONObject record, Exception e) {
+		List<JSONObject> descendants = new ArrayList<>();
+		List<RecordType> types = new ArrayList<>();
+		descendants.add(record);
+		types.add(type);
+		for (int i = 0; i < descendants.size(); i++) {
+			RecordType t = types.get(i);
+			JSONObject r = descendants.get(i);
+			stages[t.ordinal()].failures.incrementAndGet();
+			failureListener.failed(t, r, i == 0 ? e : new ConnectionException("parent " + r.optString(t.parentField) + " could not be loaded"));
+			if (t.ordinal() + 1 == stages.length) continue;
+			RecordType childType = RecordType.values()[t.ordinal() + 1];
+			synchronized (lock) {
+				String id = r.getString("id");
+				if (!parentsExist) failed.get(t).add(id);
+				// only the children of a record that would have released them have been counted
+				boolean counted = releasesChildren(t, id);
+				queued.get(t).remove(id);
+				pending.get(t).remove(id);
+				List<JSONObject> children = waiting.get(childType).remove(id);
+				if (children != null) {
+					if (counted) waitingForQueued -= children.size();
+					lock.notifyAll();
+					for (JSONObject child : children) {
+						descendants.add(child);
+						types.add(childType);
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+package de.fau.ub.folio.connection.mirror;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**A memory-mapped hash index from record UUIDs to the position of the record in the data file.
+ *
+ * The file starts with a header of 64 bytes, followed by the slots of an open-addressed table
+ * with linear probing like the one of {@code UuidLongMap}. Each slot takes 32 bytes: the two halves of the
+ * UUID, the position of the record in the data file and the time the record was fetched from Okapi.
+ * A removed record keeps its slot with a position of -1, so no entries have to be moved.
+ * If the table gets too full, it is rehashed into a new file of twice the capacity, which then
+ * replaces the old one. The old file is still mapped at that point, as a mapping is only released by the
+ * garbage collector, so this needs POSIX file semantics.
+ *
+ * The header also holds the committed length of the data file: data beyond it has not been
+ * indexed completely and is cut off when the mirror is opened again.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+class MirrorIndex implements Closeable {
+
+	private static final int MAGIC = 0x4f4b4d49; // "OKMI"
+	private static final int VERSION = 1;
+	private static final int HEADER = 64;
+	private static final int SLOT = 32;
+	private static final int MIN_CAPACITY = 1024;
+	private static final float LOAD_FACTOR = 0.7f;
+	/** a mapping is limited to Integer.MAX_VALUE bytes */
+	private static final int MAX_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - HEADER) / SLOT);
+
+	private static final int CAPACITY_AT = 8;
+	private static final int USED_AT = 12;
+	private static final int LIVE_AT = 16;
+	private static final int COMMITTED_AT = 24;
+
+	private final Path file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int mask;
+
+	private MirrorIndex(Path file, FileChannel channel, MappedByteBuffer buffer) {
+		this.file = file;
+		this.channel = channel;
+		this.buffer = buffer;
+		this.capacity = buffer.getInt(CAPACITY_AT);
+		this.mask = capacity - 1;
+	}
+
+	/** Opens an index file or creates an empty one.
+	 *
+	 * @param file the file
+	 * @return the index
+	 * @throws IOException if the file cannot be opened or is not an index
+	 */
+	static MirrorIndex open(Path file) throws IOException {
+		if (!Files.exists(file)) create(file, MIN_CAPACITY).close();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			if (channel.size() < HEADER || buffer.getInt(0) != MAGIC) throw new IOException(file + " is not a mirror index");
+			if (buffer.getInt(4) != VERSION) throw new IOException("unsupported version " + buffer.getInt(4) + " of mirror index " + file);
+			if (channel.size() != HEADER + (long) buffer.getInt(CAPACITY_AT) * SLOT) throw new IOException("mirror index " + file + " is truncated");
+			return new MirrorIndex(file, channel, buffer);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** Creates an empty index file, replacing an existing one.
+	 */
+	private static MirrorIndex create(Path file, int capacity) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			// a new mapping is filled with zeros, ie. all slots are free
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(CAPACITY_AT, capacity);
+			return new MirrorIndex(file, channel, buffer);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** Returns the number of records in the index.
+	 */
+	int size() {
+		return buffer.getInt(LIVE_AT);
+	}
+
+	long committedLength() {
+		return buffer.getLong(COMMITTED_AT);
+	}
+
+	void setCommittedLength(long length) {
+		buffer.putLong(COMMITTED_AT, length);
+	}
+
+	private static int hash(long hi, long lo) {
+		long h = hi ^ lo;
+		// murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	/** Finds the slot of a UUID.
+	 *
+	 * @return the byte position of the slot if found, otherwise -(position of the free slot) - 1
+	 */
+	private int find(long hi, long lo) {
+		int slot = hash(hi, lo) & mask;
+		while (true) {
+			int i = HEADER + slot * SLOT;
+			long h = buffer.getLong(i);
+			long l = buffer.getLong(i + 8);
+			if (h == hi && l == lo) return i;
+			if (h == 0 && l == 0) return -i - 1;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/** Returns the position of a record in the data file.
+	 *
+	 * @return the position or -1 if the record is not in the index
+	 */
+	long position(long hi, long lo) {
+		int i = find(hi, lo);
+		return i < 0 ? -1 : buffer.getLong(i + 16);
+	}
+
+	/** Returns the time a record was fetched.
+	 *
+	 * @return the time in milliseconds since the epoch or -1 if the record is not in the index
+	 */
+	long fetchedAt(long hi, long lo) {
+		int i = find(hi, lo);
+		return i < 0 || buffer.getLong(i + 16) < 0 ? -1 : buffer.getLong(i + 24);
+	}
+
+	/** Adds or replaces the entry of a record, growing the index if necessary.
+	 *
+	 * @throws IOException if the index had to grow and the new file cannot be written
+	 */
+	void put(long hi, long lo, long position, long fetchedAt) throws IOException {
+		if (hi == 0 && lo == 0) throw new IllegalArgumentException("the nil UUID cannot be indexed");
+		int i = find(hi, lo);
+		boolean live;
+		if (i < 0) {
+			if (buffer.getInt(USED_AT) + 1 > capacity * LOAD_FACTOR) {
+				grow();
+				i = find(hi, lo);
+			}
+			i = -i - 1;
+			buffer.putLong(i, hi);
+			buffer.putLong(i + 8, lo);
+			buffer.putInt(USED_AT, buffer.getInt(USED_AT) + 1);
+			live = false;
+		}
+		else {
+			live = buffer.getLong(i + 16) >= 0;
+		}
+		if (!live) buffer.putInt(LIVE_AT, buffer.getInt(LIVE_AT) + 1);
+		buffer.putLong(i + 16, position);
+		buffer.putLong(i + 24, fetchedAt);
+	}
+
+	/** Removes the entry of a record.
+	 *
+	 * @return true if the record was in the index
+	 */
+	boolean remove(long hi, long lo) {
+		int i = find(hi, lo);
+		if (i < 0 || buffer.getLong(i + 16) < 0) return false;
+		buffer.putLong(i + 16, -1);
+		buffer.putInt(LIVE_AT, buffer.getInt(LIVE_AT) - 1);
+		return true;
+	}
+
+	/** Receives the entries of the index.
+	 */
+	interface EntryConsumer {
+		void accept(long hi, long lo, long position, long fetchedAt) throws IOException;
+	}
+
+	/** Passes all records in the index to a consumer. The index must not be modified meanwhile.
+	 */
+	void forEach(EntryConsumer consumer) throws IOException {
+		for (int slot = 0; slot < capacity; slot++) {
+			int i = HEADER + slot * SLOT;
+			long h = buffer.getLong(i);
+			long l = buffer.getLong(i + 8);
+			if ((h != 0 || l != 0) && buffer.getLong(i + 16) >= 0) consumer.accept(h, l, buffer.getLong(i + 16), buffer.getLong(i + 24));
+		}
+	}
+
+	/** Rehashes the index into a file of twice the capacity, dropping removed entries, and replaces the file.
+	 */
+	private void grow() throws IOException {
+		if (capacity >= MAX_CAPACITY) throw new IllegalStateException("mirror index " + file + " is full");
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		MirrorIndex grown = create(tmp, capacity * 2);
+		forEach(grown::put);
+		grown.setCommittedLength(committedLength());
+		grown.buffer.force();
+		channel.close();
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.channel = grown.channel;
+		this.buffer = grown.buffer;
+		this.capacity = grown.capacity;
+		this.mask = grown.mask;
+	}
+
+	/** Writes the changes to the file.
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+
+}
@@ -0,0 +1,634 @@
+package de.fau.ub.folio.connection.mirror;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.CqlPager;
+import de.fau.ub.folio.connection.OkapiConnection;
+import de.fau.ub.folio.connection.OkapiConnection.Response;
+import de.fau.ub.folio.connection.uuid.Uuids;
+
+/**A local copy of the records of a collection endpoint, e.g. of all instances, for jobs that read the same records many times.
+ *
+ * The mirror is filled by a full export ({@code exportAll()}) and kept up to date by incremental updates
+ * ({@code update()}), which fetch the records whose <code>metadata.updatedDate</code> is not older than
+ * the start of the previous export or update, minus a safety margin for clock skew and transactions that
+ * were still running. Deletions in FOLIO are only noticed by the next full export or when a stale record
+ * is fetched again.
+ *
+ * {@code get()} serves a record from the mirror and falls back to Okapi if the record is missing or older
+ * than the maximum age; the fetched record is then added to the mirror. {@code getLocal()} and {@code forEach()}
+ * never call Okapi.
+ *
+ * Example:
+ * <pre>
+ * try (RecordMirror instances = new RecordMirror(okapi, "instance-storage/instances", "instances", Path.of("mirror/instances"))) {
+ *     if (instances.size() == 0) instances.exportAll(null);
+ *     else instances.update();
+ *     JSONObject instance = instances.get("69640328-788e-43fc-9c3c-af39e243f3b7");
+ *     ...
+ * }
+ * </pre>
+ *
+ * The records are kept in an append-only data file, each as UTF-8 JSON preceded by its length and its UUID.
+ * A memory-mapped hash index ({@code MirrorIndex}) maps the UUIDs to the positions in the data file, so
+ * a lookup costs a few memory accesses and one read from the page cache. Replaced and removed records
+ * remain in the data file until {@code compact()} is called. A full export and a compaction write new
+ * files, which replace the old ones at the end; the mirror can be read meanwhile. Records written to or
+ * removed from the mirror during an export are kept in memory and applied to the new files before they
+ * replace the old ones, so they are not lost or undone by the export.
+ *
+ * The files survive a crash of the process; use {@code flush()} to make them survive a crash of the
+ * operating system, too. The mirror is thread-safe, but a directory must not be used by several
+ * mirrors at the same time.
+ *
+ * The mirror needs the POSIX semantics of replacing and deleting files that are still memory-mapped,
+ * which Windows does not allow; it is not supported there.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class RecordMirror implements Closeable {
+
+	private static final String PROPERTIES_FILE = "mirror.properties";
+	private static final int ENTRY_HEADER = Integer.BYTES + 2 * Long.BYTES;
+	/** the format of <code>metadata.updatedDate</code> */
+	private static final DateTimeFormatter UPDATED_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSxxx").withZone(ZoneOffset.UTC);
+
+	/** The files of a mirror. A new generation is created by a full export or a compaction.
+	 */
+	private static class Generation implements Closeable {
+		final int number;
+		final Path dataFile;
+		final Path indexFile;
+		final FileChannel data;
+		final MirrorIndex index;
+		long dataLength;
+
+		Generation(Path directory, int number) throws IOException {
+			this.number = number;
+			this.dataFile = directory.resolve("records-" + number + ".dat");
+			this.indexFile = directory.resolve("records-" + number + ".idx");
+			this.data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				this.index = MirrorIndex.open(indexFile);
+			} catch (IOException e) {
+				data.close();
+				throw e;
+			}
+			// cut off an entry that was being written when the process died
+			this.dataLength = index.committedLength();
+			if (data.size() > dataLength) data.truncate(dataLength);
+		}
+
+		/** Appends a record and indexes it.
+		 */
+		void append(long hi, long lo, byte[] json, long fetchedAt) throws IOException {
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER + json.length);
+			entry.putInt(json.length).putLong(hi).putLong(lo).put(json).flip();
+			long position = dataLength;
+			while (entry.hasRemaining()) {
+				data.write(entry, position + entry.position());
+			}
+			// the entry is committed before it is indexed: after a crash, the index must not point
+			// behind the committed length, where the next entry would be written
+			dataLength += entry.limit();
+			index.setCommittedLength(dataLength);
+			index.put(hi, lo, position, fetchedAt);
+		}
+
+		/** Reads the JSON of the record at a position of the data file.
+		 *
+		 * @throws IOException if the entry at the position is not the record's
+		 */
+		byte[] read(long hi, long lo, long position) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+			readFully(header, position);
+			if (header.getLong(Integer.BYTES) != hi || header.getLong(Integer.BYTES + Long.BYTES) != lo) {
+				throw new IOException("mirror index " + indexFile + " does not match the data file at position " + position);
+			}
+			ByteBuffer json = ByteBuffer.allocate(header.getInt(0));
+			readFully(json, position + ENTRY_HEADER);
+			return json.array();
+		}
+
+		private void readFully(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (data.read(buffer, position + buffer.position()) < 0) throw new EOFException("mirror data file " + dataFile + " is truncated");
+			}
+		}
+
+		void flush() throws IOException {
+			data.force(false);
+			index.force();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				data.force(false);
+				data.close();
+			} finally {
+				index.close();
+			}
+		}
+
+		/** Deletes the files. The index stays mapped until the mapping is garbage collected, which POSIX systems allow.
+		 */
+		void delete() throws IOException {
+			close();
+			Files.deleteIfExists(dataFile);
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+	/** A record written to or removed from the mirror while an export is running.
+	 */
+	private static class Change {
+		final long hi;
+		final long lo;
+		/** null if the record was removed */
+		final byte[] json;
+		final long fetchedAt;
+
+		Change(long hi, long lo, byte[] json, long fetchedAt) {
+			this.hi = hi;
+			this.lo = lo;
+			this.json = json;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final OkapiConnection okapi;
+	private final String path;
+	private final String collectionKey;
+	private final Path directory;
+	private final Logger logger;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final AtomicLong localReads = new AtomicLong();
+	private final AtomicLong okapiReads = new AtomicLong();
+	private Generation current;
+	/** the changes since the start of the running export, null if there is none; guarded by the write lock */
+	private List<Change> exportChanges = null;
+	private String query;
+	private String lastUpdated;
+	private Duration maxAge = null;
+	private Duration safetyMargin = Duration.ofMinutes(5);
+	private int pageSize = 500;
+
+	/** Opens the mirror in a directory or creates an empty one.
+	 *
+	 * @param okapi the connection for exports, updates and the fallback of {@code get()}
+	 * @param path the path of the collection endpoint, e.g. "instance-storage/instances"
+	 * @param collectionKey the key of the record array in the response, e.g. "instances"
+	 * @param directory the directory of the mirror's files; is created if necessary
+	 * @throws IOException if the files cannot be opened
+	 * @throws IllegalArgumentException if the directory holds the mirror of another endpoint
+	 */
+	public RecordMirror(OkapiConnection okapi, String path, String collectionKey, Path directory) throws IOException {
+		super();
+		this.okapi = okapi;
+		this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+		this.collectionKey = collectionKey;
+		this.directory = directory;
+		this.logger = System.getLogger(this.getClass().getCanonicalName());
+		Files.createDirectories(directory);
+		Properties properties = new Properties();
+		Path propertiesFile = directory.resolve(PROPERTIES_FILE);
+		if (Files.exists(propertiesFile)) {
+			try (InputStream in = Files.newInputStream(propertiesFile)) {
+				properties.load(in);
+			}
+			if (!this.path.equals(properties.getProperty("path"))) {
+				throw new IllegalArgumentException(directory + " holds the mirror of " + properties.getProperty("path") + ", not of " + this.path);
+			}
+		}
+		this.query = properties.getProperty("query");
+		this.lastUpdated = properties.getProperty("lastUpdated");
+		this.current = new Generation(directory, Integer.parseInt(properties.getProperty("generation", "0")));
+		if (!Files.exists(propertiesFile)) saveProperties(current.number, query, lastUpdated);
+	}
+
+	/** Sets the age after which {@code get()} fetches a record from Okapi again.
+	 *
+	 * @param maxAge the maximum age; null if records never become stale (default)
+	 */
+	public void setMaxAge(Duration maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/** Sets how long before the start of an export or update the next update begins.
+	 *
+	 * The margin must cover the difference between the clocks of this host and of FOLIO
+	 * and the duration of transactions in FOLIO, as a record is stamped with the time
+	 * it was changed, not the time the change was committed.
+	 *
+	 * @param safetyMargin the margin; defaults to 5 minutes
+	 */
+	public void setSafetyMargin(Duration safetyMargin) {
+		if (safetyMargin.isNegative()) throw new IllegalArgumentException("safety margin must not be negative");
+		this.safetyMargin = safetyMargin;
+	}
+
+	/** Sets the number of records per request of exports and updates.
+	 *
+	 * @param pageSize the number of records; defaults to 500
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize < 1) throw new IllegalArgumentException("page size must be positive");
+		this.pageSize = pageSize;
+	}
+
+	/** Returns a record, fetching it from Okapi if it is not in the mirror or stale.
+	 *
+	 * @param id the UUID of the record
+	 * @return the record or null if it exists neither in the mirror nor in FOLIO
+	 * @throws ConnectionException if the record had to be fetched and the request failed
+	 * @throws IOException if the mirror cannot be read
+	 */
+	public JSONObject get(String id) throws IOException {
+		long hi = Uuids.hi(id);
+		long lo = Uuids.lo(id);
+		lock.readLock().lock();
+		try {
+			long position = current.index.position(hi, lo);
+			if (position >= 0 && !isStale(current.index.fetchedAt(hi, lo))) {
+				localReads.incrementAndGet();
+				return new JSONObject(new String(current.read(hi, lo, position), StandardCharsets.UTF_8));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		okapiReads.incrementAndGet();
+		long fetchedAt = System.currentTimeMillis();
+		Response response;
+		try {
+			response = okapi.get(path + "/" + id, null, null);
+		} catch (ConnectionException e) {
+			if (e.getHttpCode() != HttpURLConnection.HTTP_NOT_FOUND) throw e;
+			remove(id);
+			return null;
+		}
+		if (response == null) throw new ConnectionException("access denied for path " + path + "/" + id, HttpURLConnection.HTTP_FORBIDDEN);
+		JSONObject record = response.toJson();
+		lock.writeLock().lock();
+		try {
+			write(hi, lo, response.body(), fetchedAt);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return record;
+	}
+
+	/** Returns a record from the mirror without asking Okapi, even if it is stale.
+	 *
+	 * @param id the UUID of the record
+	 * @return the record or null if it is not in the mirror
+	 * @throws IOException if the mirror cannot be read
+	 */
+	public JSONObject getLocal(String id) throws IOException {
+		long hi = Uuids.hi(id);
+		long lo = Uuids.lo(id);
+		lock.readLock().lock();
+		try {
+			long position = current.index.position(hi, lo);
+			if (position < 0) return null;
+			localReads.incrementAndGet();
+			return new JSONObject(new String(current.read(hi, lo, position), StandardCharsets.UTF_8));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private boolean isStale(long fetchedAt) {
+		Duration maxAge = this.maxAge;
+		return maxAge != null && System.currentTimeMillis() - fetchedAt > maxAge.toMillis();
+	}
+
+	/** Adds or replaces a record, e.g. one that has just been written to FOLIO.
+	 *
+	 * @param record the record; must have an id
+	 * @throws IOException if the record cannot be written
+	 */
+	public void put(JSONObject record) throws IOException {
+		String id = record.getString("id");
+		byte[] json = record.toString().getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			write(Uuids.hi(id), Uuids.lo(id), json, System.currentTimeMillis());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Removes a record, e.g. one that has just been deleted in FOLIO.
+	 *
+	 * @param id the UUID of the record
+	 * @return true if the record was in the mirror
+	 */
+	public boolean remove(String id) {
+		long hi = Uuids.hi(id);
+		long lo = Uuids.lo(id);
+		lock.writeLock().lock();
+		try {
+			if (exportChanges != null) exportChanges.add(new Change(hi, lo, null, 0));
+			return current.index.remove(hi, lo);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Passes all records in the mirror to a consumer, in the order they were written.
+	 *
+	 * Writes to the mirror wait until the scan has finished, so the consumer must not write to it.
+	 *
+	 * @param consumer receives the records
+	 * @throws IOException if the mirror cannot be read
+	 */
+	public void forEach(Consumer<JSONObject> consumer) throws IOException {
+		lock.readLock().lock();
+		try (FileChannel channel = FileChannel.open(current.dataFile, StandardOpenOption.READ)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+			long position = 0;
+			while (position < current.dataLength) {
+				int length = in.readInt();
+				long hi = in.readLong();
+				long lo = in.readLong();
+				byte[] json = new byte[length];
+				in.readFully(json);
+				// only the latest version of a record is indexed
+				if (current.index.position(hi, lo) == position) {
+					localReads.incrementAndGet();
+					consumer.accept(new JSONObject(new String(json, StandardCharsets.UTF_8)));
+				}
+				position += ENTRY_HEADER + length;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the number of records in the mirror.
+	 *
+	 * @return the number of records
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return current.index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the number of records read from the mirror so far.
+	 *
+	 * @return the number of records
+	 */
+	public long localReads() {
+		return localReads.get();
+	}
+
+	/** Returns the number of records {@code get()} had to fetch from Okapi so far.
+	 *
+	 * @return the number of records
+	 */
+	public long okapiReads() {
+		return okapiReads.get();
+	}
+
+	/** Replaces the content of the mirror with the records matching a query.
+	 *
+	 * The records are written to new files, so the mirror can be read meanwhile, and replace
+	 * the old content when all records have been fetched. The query is also used by later updates.
+	 *
+	 * @param query a CQL query without sort clause; null for all records
+	 * @return the number of records
+	 * @throws ConnectionException if a request failed; the mirror is left unchanged
+	 * @throws IOException if the files cannot be written
+	 */
+	public synchronized long exportAll(String query) throws IOException {
+		Generation next = newGeneration();
+		long count = 0;
+		String watermark = watermark();
+		setExportChanges(new ArrayList<>());
+		try {
+			CqlPager pager = new CqlPager(okapi, path, collectionKey, query, pageSize);
+			Response page;
+			while ((page = pager.next()) != null) {
+				long fetchedAt = System.currentTimeMillis();
+				JSONArray records = page.toJson().getJSONArray(collectionKey);
+				for (int i = 0; i < records.length(); i++) {
+					JSONObject record = records.getJSONObject(i);
+					String id = record.getString("id");
+					next.append(Uuids.hi(id), Uuids.lo(id), record.toString().getBytes(StandardCharsets.UTF_8), fetchedAt);
+				}
+				count += records.length();
+			}
+			next.flush();
+			lock.writeLock().lock();
+			try {
+				// the changes made meanwhile are newer than the exported records
+				for (Change change : exportChanges) {
+					if (change.json == null) next.index.remove(change.hi, change.lo);
+					else next.append(change.hi, change.lo, change.json, change.fetchedAt);
+				}
+				next.flush();
+				switchTo(next, query, watermark);
+				exportChanges = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (IOException | RuntimeException e) {
+			setExportChanges(null);
+			next.delete();
+			throw e;
+		}
+		logger.log(Level.INFO, "exported " + count + " records of " + path + " to " + directory);
+		return count;
+	}
+
+	/** Fetches the records that have been created or changed since the previous export or update.
+	 *
+	 * Records that have been deleted in FOLIO are not noticed.
+	 *
+	 * @return the number of records fetched
+	 * @throws ConnectionException if a request failed; the records fetched until then remain in the mirror,
+	 *         and the next update starts at the same point as this one
+	 * @throws IOException if the files cannot be written
+	 * @throws IllegalStateException if the mirror has not been exported
+	 */
+	public synchronized long update() throws IOException {
+		if (lastUpdated == null) throw new IllegalStateException("no update date known for " + path + ", export the records first");
+		// records changed within the safety margin are fetched once more, which does no harm
+		String changed = "metadata.updatedDate>=\"" + lastUpdated + "\"";
+		CqlPager pager = new CqlPager(okapi, path, collectionKey, query == null ? changed : changed + " and (" + query + ")", pageSize);
+		long count = 0;
+		String watermark = watermark();
+		Response page;
+		while ((page = pager.next()) != null) {
+			long fetchedAt = System.currentTimeMillis();
+			JSONArray records = page.toJson().getJSONArray(collectionKey);
+			lock.writeLock().lock();
+			try {
+				for (int i = 0; i < records.length(); i++) {
+					JSONObject record = records.getJSONObject(i);
+					String id = record.getString("id");
+					write(Uuids.hi(id), Uuids.lo(id), record.toString().getBytes(StandardCharsets.UTF_8), fetchedAt);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			count += records.length();
+		}
+		// the new starting point is only saved after all changes have been fetched
+		saveProperties(current.number, query, watermark);
+		lastUpdated = watermark;
+		logger.log(Level.INFO, "updated " + count + " records of " + path + " in " + directory);
+		return count;
+	}
+
+	/** Rewrites the files without replaced and removed records. Reads and writes wait until the compaction has finished.
+	 *
+	 * @throws IOException if the files cannot be written; the mirror is left unchanged
+	 */
+	public synchronized void compact() throws IOException {
+		Generation next = newGeneration();
+		lock.writeLock().lock();
+		try {
+			Generation old = current;
+			old.index.forEach((hi, lo, position, fetchedAt) -> next.append(hi, lo, old.read(hi, lo, position), fetchedAt));
+			next.flush();
+			// the lock is reentrant, so no record can be written to the old files in between
+			switchTo(next, query, lastUpdated);
+		} catch (IOException | RuntimeException e) {
+			next.delete();
+			throw e;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Writes a record to the current generation and notes it for a running export. Must be called with the write lock held.
+	 */
+	private void write(long hi, long lo, byte[] json, long fetchedAt) throws IOException {
+		current.append(hi, lo, json, fetchedAt);
+		if (exportChanges != null) exportChanges.add(new Change(hi, lo, json, fetchedAt));
+	}
+
+	private void setExportChanges(List<Change> changes) {
+		lock.writeLock().lock();
+		try {
+			exportChanges = changes;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Creates the files of the next generation, replacing leftovers of a failed attempt.
+	 */
+	private Generation newGeneration() throws IOException {
+		int number = current.number + 1;
+		Files.deleteIfExists(directory.resolve("records-" + number + ".dat"));
+		Files.deleteIfExists(directory.resolve("records-" + number + ".idx"));
+		return new Generation(directory, number);
+	}
+
+	/** Makes a generation the current one and deletes the files of the old one.
+	 * The properties file is replaced atomically and thereby commits the switch;
+	 * if it cannot be written, the old generation stays the current one.
+	 */
+	private void switchTo(Generation next, String query, String lastUpdated) throws IOException {
+		Generation old;
+		lock.writeLock().lock();
+		try {
+			saveProperties(next.number, query, lastUpdated);
+			old = current;
+			current = next;
+			this.query = query;
+			this.lastUpdated = lastUpdated;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			old.delete();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "cannot delete the old files of the mirror in " + directory, e);
+		}
+	}
+
+	private void saveProperties(int generation, String query, String lastUpdated) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("path", path);
+		properties.setProperty("generation", Integer.toString(generation));
+		if (query != null) properties.setProperty("query", query);
+		if (lastUpdated != null) properties.setProperty("lastUpdated", lastUpdated);
+		Path file = directory.resolve(PROPERTIES_FILE);
+		Path tmp = directory.resolve(PROPERTIES_FILE + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			properties.store(out, "record mirror of " + path);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Returns the point the next update starts at: now, minus the safety margin, in the format of <code>metadata.updatedDate</code>.
+	 */
+	private String watermark() {
+		return UPDATED_DATE.format(Instant.now().minus(safetyMargin));
+	}
+
+	/** Writes all changes to the disk.
+	 *
+	 * @throws IOException if the files cannot be written
+	 */
+	public void flush() throws IOException {
+		lock.writeLock().lock();
+		try {
+			current.flush();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			current.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package de.fau.ub.folio.connection.pipeline;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.OkapiConnection;
+
+/**A sink that posts records to a batch endpoint, e.g. {@code instance-storage/batch/synchronous},
+ * which expects the records in an array under a collection key.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class BatchSink implements Sink {
+
+	private final OkapiConnection okapi;
+	private final String path;
+	private final String collectionKey;
+
+	/** Creates a sink.
+	 *
+	 * @param okapi the connection
+	 * @param path the path of the batch endpoint
+	 * @param collectionKey the key of the record array in the request body, e.g. "instances"
+	 */
+	public BatchSink(OkapiConnection okapi, String path, String collectionKey) {
+		this.okapi = okapi;
+		this.path = path;
+		this.collectionKey = collectionKey;
+	}
+
+	@Override
+	public void write(List<JSONObject> records) throws ConnectionException {
+		JSONObject body = new JSONObject().put(collectionKey, new JSONArray(records));
+		if (okapi.post(path, OkapiConnection.JSON_MIMETYPE, null, body.toString().getBytes(StandardCharsets.UTF_8)) == null) {
+			throw new ConnectionException("access denied for path " + path, 403);
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+package de.fau.ub.folio.connection.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.CqlPager;
+import de.fau.ub.folio.connection.OkapiConnection;
+
+/**A source that pages through the records matching a CQL query, @see {@code CqlPager}.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class CqlSource implements Source {
+
+	private final CqlPager pager;
+	private final String collectionKey;
+
+	/** Creates a source.
+	 *
+	 * @param okapi the connection
+	 * @param path the path of the collection endpoint, e.g. "instance-storage/instances"
+	 * @param collectionKey the key of the record array in the response, e.g. "instances"
+	 * @param query a CQL query without sort clause; null for all records
+	 * @param pageSize the number of records per page
+	 */
+	public CqlSource(OkapiConnection okapi, String path, String collectionKey, String query, int pageSize) {
+		this.pager = new CqlPager(okapi, path, collectionKey, query, pageSize);
+		this.collectionKey = collectionKey;
+	}
+
+	@Override
+	public List<JSONObject> next() throws ConnectionException {
+		OkapiConnection.Response page = pager.next();
+		if (page == null) return null;
+		JSONArray array = page.toJson().getJSONArray(collectionKey);
+		List<JSONObject> records = new ArrayList<>(array.length());
+		for (int i = 0; i < array.length(); i++) {
+			records.add(array.getJSONObject(i));
+		}
+		return records;
+	}
+
+}
@@ -0,0 +1,337 @@
+package de.fau.ub.folio.connection.pipeline;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.OkapiConnection;
+import de.fau.ub.folio.connection.RequestPriority;
+
+/**Moves records from a source through transform stages to a sink, e.g. from one endpoint of Okapi to another.
+ *
+ * Each stage runs in its own threads, and the stages are connected by bounded queues of record batches.
+ * A stage that cannot keep up fills its input queue and thereby slows down the stages before it,
+ * so that memory use is bounded by the queue capacity. Transform stages apply their function in parallel
+ * on a fork-join pool of their own; the sink writes batches with a number of writers in parallel.
+ *
+ * Example:
+ * <pre>
+ * Pipeline pipeline = new Pipeline(new CqlSource(okapi, "instance-storage/instances", "instances", "source==MARC", 500), 8);
+ * pipeline.addTransform("map", instance -&gt; convert(instance), 4);
+ * pipeline.setSink(new BatchSink(okapi, "instance-storage/batch/synchronous", "instances"), 100, 4);
+ * pipeline.run();
+ * </pre>
+ *
+ * The metrics of each stage ({@code metrics()}) show where the time goes: if the source is the busiest stage,
+ * the pipeline waits for Okapi; if a transform stage is, it waits for our own code.
+ *
+ * The source and the sink send their requests with {@code RequestPriority.BULK}.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class Pipeline {
+
+	/** Marks the end of the records in a queue; compared by identity.
+	 */
+	private static final List<JSONObject> END = Collections.unmodifiableList(new ArrayList<>());
+
+	private static class Transform {
+		final String name;
+		final Function<JSONObject, JSONObject> function;
+		final int parallelism;
+
+		Transform(String name, Function<JSONObject, JSONObject> function, int parallelism) {
+			this.name = name;
+			this.function = function;
+			this.parallelism = parallelism;
+		}
+	}
+
+	/** Collects the output of a stage into batches of the configured size.
+	 * Is used by a single thread only.
+	 */
+	private class Output {
+		private final BlockingQueue<List<JSONObject>> queue;
+		private List<JSONObject> batch = new ArrayList<>();
+
+		Output(BlockingQueue<List<JSONObject>> queue) {
+			this.queue = queue;
+		}
+
+		void addAll(List<JSONObject> records) throws InterruptedException {
+			for (JSONObject record : records) {
+				batch.add(record);
+				if (batch.size() == batchSize) {
+					queue.put(batch);
+					batch = new ArrayList<>();
+				}
+			}
+		}
+
+		void close() throws InterruptedException {
+			if (!batch.isEmpty()) queue.put(batch);
+			queue.put(END);
+		}
+	}
+
+	private final Source source;
+	private final int queueCapacity;
+	private final List<Transform> transforms = new ArrayList<>();
+	private final Logger logger;
+	private Sink sink;
+	private int batchSize;
+	private int writers;
+	private Duration reportInterval = null;
+	private volatile List<StageMetrics> metrics = List.of();
+	private final List<Thread> threads = new ArrayList<>();
+	private volatile Throwable failure = null;
+	private boolean started = false;
+
+	/** Creates a pipeline.
+	 *
+	 * @param source the source of the records
+	 * @param queueCapacity the number of batches that may wait in front of each stage
+	 */
+	public Pipeline(Source source, int queueCapacity) {
+		super();
+		if (queueCapacity < 1) throw new IllegalArgumentException("queue capacity must be positive");
+		this.source = source;
+		this.queueCapacity = queueCapacity;
+		this.logger = System.getLogger(this.getClass().getCanonicalName());
+	}
+
+	/** Appends a transform stage.
+	 *
+	 * @param name the name of the stage in the metrics
+	 * @param function transforms a record; may return null to drop the record. Must be thread-safe.
+	 * @param parallelism the number of threads applying the function
+	 */
+	public void addTransform(String name, Function<JSONObject, JSONObject> function, int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+		transforms.add(new Transform(name, function, parallelism));
+	}
+
+	/** Sets the sink.
+	 *
+	 * @param sink receives the records
+	 * @param batchSize the maximum number of records per write
+	 * @param writers the number of batches written in parallel
+	 */
+	public void setSink(Sink sink, int batchSize, int writers) {
+		if (batchSize < 1 || writers < 1) throw new IllegalArgumentException("batch size and writers must be positive");
+		this.sink = sink;
+		this.batchSize = batchSize;
+		this.writers = writers;
+	}
+
+	/** Logs the metrics of all stages periodically while the pipeline runs.
+	 *
+	 * @param reportInterval the interval; null to log the metrics only at the end
+	 */
+	public void setReportInterval(Duration reportInterval) {
+		this.reportInterval = reportInterval;
+	}
+
+	/** Returns the metrics of the stages, starting with the source.
+	 * The metrics are updated while the pipeline runs.
+	 *
+	 * @return the metrics; empty before the pipeline is started
+	 */
+	public List<StageMetrics> metrics() {
+		return metrics;
+	}
+
+	/** Returns the stage with the highest utilization.
+	 *
+	 * @return the metrics of the stage or null before the pipeline is started
+	 */
+	public StageMetrics bottleneck() {
+		StageMetrics bottleneck = null;
+		for (StageMetrics stage : metrics) {
+			if (bottleneck == null || stage.utilization() > bottleneck.utilization()) bottleneck = stage;
+		}
+		return bottleneck;
+	}
+
+	/** Runs the pipeline until all records have been written or a stage fails.
+	 *
+	 * If a stage fails, the other stages are stopped. Records that have been written remain written.
+	 *
+	 * @throws ConnectionException if the source or the sink failed
+	 * @throws InterruptedException if interrupted while waiting for the pipeline
+	 */
+	public void run() throws ConnectionException, InterruptedException {
+		synchronized (this) {
+			if (started) throw new IllegalStateException("pipeline has already been run");
+			if (sink == null) throw new IllegalStateException("no sink set");
+			started = true;
+		}
+		List<BlockingQueue<List<JSONObject>>> queues = new ArrayList<>();
+		for (int i = 0; i <= transforms.size(); i++) {
+			queues.add(new ArrayBlockingQueue<>(queueCapacity));
+		}
+		List<StageMetrics> stages = new ArrayList<>();
+		StageMetrics sourceMetrics = new StageMetrics("source", 1, null);
+		stages.add(sourceMetrics);
+		threads.add(new Thread(() -> runSource(sourceMetrics, new Output(queues.get(0))), "pipeline-source"));
+		for (int i = 0; i < transforms.size(); i++) {
+			Transform transform = transforms.get(i);
+			// the dispatcher of a transform stage waits for its fork-join pool, so it counts as one worker
+			StageMetrics stage = new StageMetrics(transform.name, 1, queues.get(i));
+			stages.add(stage);
+			BlockingQueue<List<JSONObject>> input = queues.get(i);
+			Output output = new Output(queues.get(i + 1));
+			threads.add(new Thread(() -> runTransform(transform, stage, input, output), "pipeline-" + transform.name));
+		}
+		StageMetrics sinkMetrics = new StageMetrics("sink", writers, queues.get(transforms.size()));
+		stages.add(sinkMetrics);
+		for (int i = 0; i < writers; i++) {
+			threads.add(new Thread(() -> runSink(sinkMetrics, queues.get(transforms.size())), "pipeline-sink-" + i));
+		}
+		metrics = Collections.unmodifiableList(stages);
+		Thread reporter = null;
+		if (reportInterval != null) {
+			reporter = new Thread(this::report, "pipeline-reporter");
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+		long start = System.nanoTime();
+		for (StageMetrics stage : stages) stage.startNanos = start;
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			fail(e);
+			throw e;
+		} finally {
+			if (reporter != null) reporter.interrupt();
+		}
+		for (StageMetrics stage : stages) {
+			logger.log(Level.INFO, stage.toString());
+		}
+		Throwable t = failure;
+		if (t == null) return;
+		if (t instanceof ConnectionException) throw (ConnectionException) t;
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		throw new IllegalStateException("pipeline failed", t);
+	}
+
+	/** Records the first failure and stops all stages.
+	 */
+	private void fail(Throwable t) {
+		synchronized (this) {
+			if (failure != null) return;
+			failure = t;
+		}
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	private void runSource(StageMetrics stage, Output output) {
+		OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+		try {
+			while (true) {
+				long start = System.nanoTime();
+				List<JSONObject> records = source.next();
+				stage.busyNanos.addAndGet(System.nanoTime() - start);
+				if (records == null) break;
+				stage.records.addAndGet(records.size());
+				output.addAll(records);
+			}
+			output.close();
+		} catch (InterruptedException e) {
+			// stopped because another stage failed
+		} catch (Throwable t) {
+			fail(t);
+		} finally {
+			stage.endNanos = System.nanoTime();
+		}
+	}
+
+	private void runTransform(Transform transform, StageMetrics stage, BlockingQueue<List<JSONObject>> input, Output output) {
+		ForkJoinPool pool = new ForkJoinPool(transform.parallelism);
+		try {
+			List<JSONObject> batch;
+			while ((batch = input.take()) != END) {
+				List<JSONObject> records = batch;
+				long start = System.nanoTime();
+				// a parallel stream runs in the pool it is started from
+				List<JSONObject> result = pool.submit(() -> records.parallelStream()
+						.map(transform.function)
+						.filter(Objects::nonNull)
+						.collect(Collectors.toList())).get();
+				stage.busyNanos.addAndGet(System.nanoTime() - start);
+				stage.records.addAndGet(records.size());
+				output.addAll(result);
+			}
+			output.close();
+		} catch (InterruptedException e) {
+			// stopped because another stage failed
+		} catch (ExecutionException e) {
+			fail(e.getCause());
+		} catch (Throwable t) {
+			fail(t);
+		} finally {
+			pool.shutdownNow();
+			stage.endNanos = System.nanoTime();
+		}
+	}
+
+	private void runSink(StageMetrics stage, BlockingQueue<List<JSONObject>> input) {
+		OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+		try {
+			List<JSONObject> batch;
+			while ((batch = input.take()) != END) {
+				long start = System.nanoTime();
+				sink.write(batch);
+				stage.busyNanos.addAndGet(System.nanoTime() - start);
+				stage.records.addAndGet(batch.size());
+			}
+			// let the other writers see the end, too
+			input.put(END);
+		} catch (InterruptedException e) {
+			// stopped because another stage failed
+		} catch (Throwable t) {
+			fail(t);
+		} finally {
+			stage.endNanos = System.nanoTime();
+		}
+	}
+
+	private void report() {
+		try {
+			while (true) {
+				Thread.sleep(reportInterval.toMillis());
+				StringBuilder sb = new StringBuilder("pipeline progress:");
+				for (StageMetrics stage : metrics) {
+					sb.append("\n  ").append(stage);
+				}
+				logger.log(Level.INFO, sb.toString());
+			}
+		} catch (InterruptedException e) {
+			// the pipeline has finished
+		}
+	}
+
+}
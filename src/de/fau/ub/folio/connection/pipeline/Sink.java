@@ -0,0 +1,25 @@
+package de.fau.ub.folio.connection.pipeline;
+
+import java.util.List;
+
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+
+/**The last stage of a {@code Pipeline}, which writes the records.
+ *
+ * Implementations must be thread-safe if the sink stage has more than one writer.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public interface Sink {
+
+	/** Writes a batch of records.
+	 *
+	 * @param records the records
+	 * @throws ConnectionException if the records cannot be written
+	 */
+	public void write(List<JSONObject> records) throws ConnectionException;
+
+}
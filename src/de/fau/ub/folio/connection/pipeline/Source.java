@@ -0,0 +1,23 @@
+package de.fau.ub.folio.connection.pipeline;
+
+import java.util.List;
+
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+
+/**The first stage of a {@code Pipeline}, which provides the records.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public interface Source {
+
+	/** Returns the next batch of records.
+	 *
+	 * @return the records or null if there are no more records
+	 * @throws ConnectionException if the records cannot be fetched
+	 */
+	public List<JSONObject> next() throws ConnectionException;
+
+}
@@ -0,0 +1,80 @@
+package de.fau.ub.folio.connection.pipeline;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Throughput and utilization of a stage of a {@code Pipeline}.
+ *
+ * The utilization is the share of time the stage's workers spent working rather than 
+ * waiting for input or for room in the output queue. The stage with the highest 
+ * utilization is the bottleneck. A full input queue points the same way.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class StageMetrics {
+
+	private final String name;
+	private final int workers;
+	private final BlockingQueue<?> input;
+	final AtomicLong records = new AtomicLong();
+	final AtomicLong busyNanos = new AtomicLong();
+	volatile long startNanos = 0;
+	volatile long endNanos = 0;
+
+	StageMetrics(String name, int workers, BlockingQueue<?> input) {
+		this.name = name;
+		this.workers = workers;
+		this.input = input;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/** Returns the number of records that passed the stage.
+	 *
+	 * @return the number of records
+	 */
+	public long records() {
+		return records.get();
+	}
+
+	/** Returns the number of records per second since the stage started.
+	 *
+	 * @return the throughput
+	 */
+	public double throughput() {
+		long elapsed = elapsedNanos();
+		return elapsed == 0 ? 0 : records.get() * 1e9 / elapsed;
+	}
+
+	/** Returns the share of time the stage's workers were busy.
+	 *
+	 * @return the utilization between 0 and 1
+	 */
+	public double utilization() {
+		long elapsed = elapsedNanos();
+		return elapsed == 0 ? 0 : Math.min(1.0, (double) busyNanos.get() / elapsed / workers);
+	}
+
+	/** Returns the number of batches waiting in front of the stage.
+	 *
+	 * @return the queue depth; 0 for the source
+	 */
+	public int queueDepth() {
+		return input == null ? 0 : input.size();
+	}
+
+	private long elapsedNanos() {
+		if (startNanos == 0) return 0;
+		return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d records, %.1f records/s, utilization %.0f%%, queue depth %d",
+				name, records(), throughput(), utilization() * 100, queueDepth());
+	}
+
+}
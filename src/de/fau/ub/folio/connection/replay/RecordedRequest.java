@@ -0,0 +1,100 @@
+package de.fau.ub.folio.connection.replay;
+
+import java.util.Map;
+
+/**A request read from a traffic file, @see {@code TrafficReader}.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class RecordedRequest {
+
+	private final long startMillis;
+	private final long durationNanos;
+	private final String method;
+	private final String path;
+	private final Map<String, String> parameters;
+	private final Map<String, String> headers;
+	private final String contentType;
+	private final byte[] body;
+	private final int status;
+	private final byte[] responseBody;
+	private final String requestId;
+
+	RecordedRequest(long startMillis, long durationNanos, String method, String path, Map<String, String> parameters,
+			Map<String, String> headers, String contentType, byte[] body, int status, byte[] responseBody, String requestId) {
+		this.startMillis = startMillis;
+		this.durationNanos = durationNanos;
+		this.method = method;
+		this.path = path;
+		this.parameters = parameters;
+		this.headers = headers;
+		this.contentType = contentType;
+		this.body = body;
+		this.status = status;
+		this.responseBody = responseBody;
+		this.requestId = requestId;
+	}
+
+	/** Returns the time the request was issued, in milliseconds since the epoch.
+	 */
+	public long startMillis() {
+		return startMillis;
+	}
+
+	public long durationNanos() {
+		return durationNanos;
+	}
+
+	public String method() {
+		return method;
+	}
+
+	public String path() {
+		return path;
+	}
+
+	/** Returns the URL parameters; may be null.
+	 */
+	public Map<String, String> parameters() {
+		return parameters;
+	}
+
+	/** Returns the custom headers without credentials; may be null.
+	 */
+	public Map<String, String> headers() {
+		return headers;
+	}
+
+	public String contentType() {
+		return contentType;
+	}
+
+	/** Returns the request body; may be null.
+	 */
+	public byte[] body() {
+		return body;
+	}
+
+	/** Returns the HTTP status of the response or -1 if there was none.
+	 */
+	public int status() {
+		return status;
+	}
+
+	/** Returns the response body; null if the request failed or response bodies were not recorded.
+	 */
+	public byte[] responseBody() {
+		return responseBody;
+	}
+
+	public String requestId() {
+		return requestId;
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + path + (parameters == null ? "" : " " + parameters) + " -> " + status;
+	}
+
+}
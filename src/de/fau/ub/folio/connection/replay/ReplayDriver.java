@@ -0,0 +1,177 @@
+package de.fau.ub.folio.connection.replay;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.OkapiConnection;
+import de.fau.ub.folio.connection.OkapiConnection.Response;
+
+/**Sends the requests of a traffic file, @see {@code TrafficRecorder}, again to a target, and measures
+ * throughput and latency.
+ *
+ * The requests are issued on the recorded schedule, optionally accelerated, or as fast as the
+ * workers allow. The number of requests in flight is bounded by the number of workers; if they are
+ * all busy, the replay falls behind the schedule, which is reported as lag.
+ *
+ * Example:
+ * <pre>
+ * ReplayDriver driver = new ReplayDriver(okapi, Path.of("job.traffic"));
+ * driver.setSpeed(10);
+ * System.out.println(driver.run());
+ * </pre>
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class ReplayDriver {
+
+	/** Replays the requests as fast as possible.
+	 */
+	public static final double MAX_RATE = Double.POSITIVE_INFINITY;
+
+	private final OkapiConnection target;
+	private final Path file;
+	private double speed = 1;
+	private int workers = 16;
+	private boolean readOnly = false;
+
+	/** Creates a driver.
+	 *
+	 * @param target the connection to send the requests with
+	 * @param file the traffic file
+	 */
+	public ReplayDriver(OkapiConnection target, Path file) {
+		super();
+		this.target = target;
+		this.file = file;
+	}
+
+	/** Sets the speed of the replay relative to the recording.
+	 *
+	 * @param speed 1 for the original rate (default), e.g. 10 for ten times as fast, or {@code MAX_RATE}
+	 */
+	public void setSpeed(double speed) {
+		if (!(speed > 0)) throw new IllegalArgumentException("speed must be positive");
+		this.speed = speed;
+	}
+
+	/** Sets the maximum number of requests in flight.
+	 *
+	 * @param workers the number of workers; defaults to 16
+	 */
+	public void setWorkers(int workers) {
+		if (workers < 1) throw new IllegalArgumentException("workers must be positive");
+		this.workers = workers;
+	}
+
+	/** Restricts the replay to GET requests, e.g. for a target with real data.
+	 *
+	 * @param readOnly true to skip POST, PUT and DELETE requests; defaults to false
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	/** Replays the traffic file.
+	 *
+	 * @return the report
+	 * @throws IOException if the traffic file cannot be read
+	 * @throws InterruptedException if interrupted while replaying
+	 */
+	public ReplayReport run() throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "okapi-replay-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		Semaphore permits = new Semaphore(workers);
+		long[][] latencies = {new long[1024]};
+		int[] count = {0};
+		AtomicLong failed = new AtomicLong();
+		AtomicLong mismatches = new AtomicLong();
+		long skipped = 0;
+		long maxLag = 0;
+		long start = System.nanoTime();
+		try (TrafficReader reader = new TrafficReader(file)) {
+			long firstMillis = -1;
+			RecordedRequest request;
+			while ((request = reader.next()) != null) {
+				if (readOnly && !request.method().equals("GET")) {
+					skipped++;
+					continue;
+				}
+				if (firstMillis < 0) firstMillis = request.startMillis();
+				long due = start;
+				if (speed != MAX_RATE) {
+					due = start + (long) ((request.startMillis() - firstMillis) * 1e6 / speed);
+					long wait = due - System.nanoTime();
+					if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				permits.acquire();
+				if (speed != MAX_RATE) maxLag = Math.max(maxLag, System.nanoTime() - due);
+				RecordedRequest r = request;
+				executor.execute(() -> {
+					try {
+						long t = System.nanoTime();
+						int status = send(r);
+						long latency = System.nanoTime() - t;
+						if (status == -1) failed.incrementAndGet();
+						if (status != r.status()) mismatches.incrementAndGet();
+						synchronized (latencies) {
+							if (count[0] == latencies[0].length) latencies[0] = Arrays.copyOf(latencies[0], count[0] * 2);
+							latencies[0][count[0]++] = latency;
+						}
+					} finally {
+						permits.release();
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		long elapsed = System.nanoTime() - start;
+		synchronized (latencies) {
+			return new ReplayReport(Arrays.copyOf(latencies[0], count[0]), skipped, failed.get(), mismatches.get(), elapsed, maxLag);
+		}
+	}
+
+	/** Sends a recorded request.
+	 *
+	 * @return the HTTP status or -1 if there was no response
+	 */
+	private int send(RecordedRequest request) {
+		try {
+			Response response;
+			switch (request.method()) {
+			case "GET":
+				response = target.get(request.path(), request.parameters(), request.headers());
+				break;
+			case "DELETE":
+				response = target.delete(request.path(), request.parameters(), request.headers());
+				break;
+			case "POST":
+				response = target.post(request.path(), request.contentType(), request.headers(), request.body());
+				break;
+			case "PUT":
+				response = target.put(request.path(), request.contentType(), request.headers(), request.body());
+				break;
+			default:
+				return -1;
+			}
+			return response == null ? 403 : response.httpCode();
+		} catch (ConnectionException e) {
+			return e.getHttpCode();
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+}
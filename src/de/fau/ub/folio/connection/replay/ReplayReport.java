@@ -0,0 +1,91 @@
+package de.fau.ub.folio.connection.replay;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**The outcome of a replay, @see {@code ReplayDriver}.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class ReplayReport {
+
+	private final long[] latencies;
+	private final long skipped;
+	private final long failed;
+	private final long statusMismatches;
+	private final long elapsedNanos;
+	private final long maxLagNanos;
+
+	ReplayReport(long[] latencies, long skipped, long failed, long statusMismatches, long elapsedNanos, long maxLagNanos) {
+		this.latencies = latencies;
+		Arrays.sort(this.latencies);
+		this.skipped = skipped;
+		this.failed = failed;
+		this.statusMismatches = statusMismatches;
+		this.elapsedNanos = elapsedNanos;
+		this.maxLagNanos = maxLagNanos;
+	}
+
+	/** Returns the number of requests sent.
+	 */
+	public long requests() {
+		return latencies.length;
+	}
+
+	/** Returns the number of recorded requests that were not sent, e.g. writes in read-only mode.
+	 */
+	public long skipped() {
+		return skipped;
+	}
+
+	/** Returns the number of requests that got no response.
+	 */
+	public long failed() {
+		return failed;
+	}
+
+	/** Returns the number of requests whose status differed from the recorded one.
+	 */
+	public long statusMismatches() {
+		return statusMismatches;
+	}
+
+	public Duration elapsed() {
+		return Duration.ofNanos(elapsedNanos);
+	}
+
+	/** Returns the number of requests per second.
+	 */
+	public double throughput() {
+		return elapsedNanos == 0 ? 0 : latencies.length * 1e9 / elapsedNanos;
+	}
+
+	/** Returns a percentile of the latencies.
+	 *
+	 * @param percentile the percentile between 0 and 1, e.g. 0.99
+	 * @return the latency; zero if no request was sent
+	 */
+	public Duration latency(double percentile) {
+		if (latencies.length == 0) return Duration.ZERO;
+		int index = (int) Math.ceil(percentile * latencies.length) - 1;
+		return Duration.ofNanos(latencies[Math.max(0, Math.min(index, latencies.length - 1))]);
+	}
+
+	/** Returns how far the replay fell behind the schedule at most, because all workers were busy.
+	 * Large values mean that the target or the number of workers could not sustain the requested rate.
+	 */
+	public Duration maxLag() {
+		return Duration.ofNanos(maxLagNanos);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d requests in %.1f s (%.1f/s), %d skipped, %d failed, %d status mismatches, "
+				+ "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms, max lag %.1f ms",
+				requests(), elapsedNanos / 1e9, throughput(), skipped, failed, statusMismatches,
+				latency(0.5).toNanos() / 1e6, latency(0.9).toNanos() / 1e6, latency(0.99).toNanos() / 1e6,
+				latency(1).toNanos() / 1e6, maxLagNanos / 1e6);
+	}
+
+}
@@ -0,0 +1,100 @@
+package de.fau.ub.folio.connection.replay;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**Reads the requests from a file written by a {@code TrafficRecorder}, one at a time.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class TrafficReader implements Closeable {
+
+	private final DataInputStream in;
+
+	/** Opens a traffic file.
+	 *
+	 * @param file the file
+	 * @throws IOException if the file cannot be read or is not a traffic file
+	 */
+	public TrafficReader(Path file) throws IOException {
+		super();
+		this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+		try {
+			if (in.readInt() != TrafficRecorder.MAGIC) throw new IOException(file + " is not a traffic file");
+			short version = in.readShort();
+			if (version != TrafficRecorder.VERSION) throw new IOException("unsupported traffic file version " + version);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/** Reads the next request.
+	 *
+	 * @return the request or null at the end of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public RecordedRequest next() throws IOException {
+		byte[] entry;
+		try {
+			int length = in.readInt();
+			if (length < 0) throw new IOException("corrupted traffic file");
+			entry = in.readNBytes(length);
+			if (entry.length < length) return null; // torn entry at the end
+		} catch (EOFException e) {
+			return null;
+		}
+		DataInputStream e = new DataInputStream(new ByteArrayInputStream(entry));
+		long startMillis = e.readLong();
+		long durationNanos = e.readLong();
+		String method = readString(e);
+		String path = readString(e);
+		Map<String, String> parameters = readMap(e);
+		Map<String, String> headers = readMap(e);
+		String contentType = readString(e);
+		byte[] body = readBytes(e);
+		int status = e.readInt();
+		byte[] responseBody = readBytes(e);
+		String requestId = readString(e);
+		return new RecordedRequest(startMillis, durationNanos, method, path, parameters, headers, contentType, body, status, responseBody, requestId);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private static Map<String, String> readMap(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) return null;
+		Map<String, String> map = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			map.put(readString(in), readString(in));
+		}
+		return map;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = in.readNBytes(length);
+		if (bytes.length < length) throw new EOFException();
+		return bytes;
+	}
+
+}
@@ -0,0 +1,169 @@
+package de.fau.ub.folio.connection.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+
+import de.fau.ub.folio.connection.RequestRecorder;
+
+/**Writes the requests of an {@code OkapiConnection} to an append-only file for a later replay.
+ *
+ * Usage:
+ * <pre>
+ * try (TrafficRecorder recorder = new TrafficRecorder(Path.of("job.traffic"), true)) {
+ *     okapi.setRecorder(recorder);
+ *     ...
+ * }
+ * </pre>
+ *
+ * The file starts with a magic number and a version, followed by one length-prefixed binary
+ * entry per request. Each entry is flushed when written, so that a crash loses at most the entry
+ * being written; a torn entry at the end of the file is ignored by the {@code TrafficReader} and cut off
+ * when the file is opened for recording again.
+ * Headers that carry credentials (tokens, cookies, authorization) are not written.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class TrafficRecorder implements RequestRecorder, Closeable {
+
+	static final int MAGIC = 0x4f4b5452; // "OKTR"
+	static final short VERSION = 1;
+	private static final int HEADER_SIZE = Integer.BYTES + Short.BYTES;
+	private static final Set<String> SENSITIVE_HEADERS = Set.of("x-okapi-token", "authorization", "cookie", "set-cookie");
+
+	private final DataOutputStream out;
+	private final boolean responseBodies;
+
+	/** Opens a file for recording; an existing file is appended to.
+	 *
+	 * @param file the file
+	 * @param responseBodies whether the bodies of responses are recorded, too
+	 * @throws IOException if the file cannot be opened or is not a traffic file
+	 */
+	public TrafficRecorder(Path file, boolean responseBodies) throws IOException {
+		super();
+		boolean fresh = !Files.exists(file) || truncateTornEntry(file) == 0;
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+		this.responseBodies = responseBodies;
+		if (fresh) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.flush();
+		}
+	}
+
+	/** Cuts off a torn entry at the end of an existing file, as left by a crash,
+	 * so that the entries appended afterwards can be read.
+	 *
+	 * @return the length of the file afterwards
+	 */
+	private static long truncateTornEntry(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (size < HEADER_SIZE) {
+				// the crash happened while the header was written
+				channel.truncate(0);
+				return 0;
+			}
+			readFully(channel, header, 0);
+			if (header.getInt(0) != MAGIC) throw new IOException(file + " is not a traffic file");
+			if (header.getShort(Integer.BYTES) != VERSION) throw new IOException("unsupported traffic file version " + header.getShort(Integer.BYTES));
+			long position = HEADER_SIZE;
+			ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+			while (position + Integer.BYTES <= size) {
+				readFully(channel, length.clear(), position);
+				int entryLength = length.getInt(0);
+				if (entryLength < 0 || position + Integer.BYTES + entryLength > size) break;
+				position += Integer.BYTES + entryLength;
+			}
+			if (position < size) channel.truncate(position);
+			return position;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+		}
+	}
+
+	@Override
+	public void record(String method, String path, Map<String, String> parameters, Map<String, String> headers,
+			String contentType, byte[] body, int status, byte[] responseBody, String requestId, long startMillis, long durationNanos) {
+		// we serialize outside the lock and only write while holding it
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 + (body == null ? 0 : body.length));
+		DataOutputStream entry = new DataOutputStream(buffer);
+		try {
+			entry.writeLong(startMillis);
+			entry.writeLong(durationNanos);
+			writeString(entry, method);
+			writeString(entry, path);
+			writeMap(entry, parameters, false);
+			writeMap(entry, headers, true);
+			writeString(entry, contentType);
+			writeBytes(entry, body);
+			entry.writeInt(status);
+			writeBytes(entry, responseBodies ? responseBody : null);
+			writeString(entry, requestId);
+			synchronized (out) {
+				out.writeInt(buffer.size());
+				buffer.writeTo(out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("cannot record request for path " + path, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (out) {
+			out.close();
+		}
+	}
+
+	private static void writeMap(DataOutputStream out, Map<String, String> map, boolean headers) throws IOException {
+		if (map == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int count = 0;
+		for (String key : map.keySet()) {
+			if (!headers || !SENSITIVE_HEADERS.contains(key.toLowerCase())) count++;
+		}
+		out.writeInt(count);
+		for (Map.Entry<String, String> e : map.entrySet()) {
+			if (headers && SENSITIVE_HEADERS.contains(e.getKey().toLowerCase())) continue;
+			writeString(out, e.getKey());
+			writeString(out, e.getValue());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+}
@@ -0,0 +1,220 @@
+package de.fau.ub.folio.connection.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+
+/**The subset of CQL the simulator understands.
+ *
+ * A query is a conjunction (<code>and</code>) of terms of the form <code>field op value</code> with the
+ * operators ==, =, &lt;&gt;, &lt;, &lt;=, &gt; and &gt;=, optionally followed by <code>sortBy id</code>.
+ * <code>cql.allRecords=1</code> matches every record. A value may be quoted, may end with * for a
+ * prefix match, and, for ==, may be a list like <code>(a or b or c)</code>. Fields may be paths into
+ * nested objects, e.g. <code>status.name</code>. Everything is compared as strings.
+ *
+ * Terms on the id that narrow down the records to look at, ie. <code>id==...</code> and
+ * <code>id &gt; ...</code>, are kept apart, so that the simulator can page through large
+ * collections without scanning them.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+class CqlFilter {
+
+	private static final Pattern TERM = Pattern.compile("([\\w.]+)\\s*(==|<>|>=|<=|=|>|<)\\s*(.+)", Pattern.DOTALL);
+	private static final Pattern SORT = Pattern.compile("(?i)\\s+sortby\\s+(\\S+)\\s*$");
+	private static final Pattern AND = Pattern.compile("(?i)\\s+and\\s+");
+
+	/** The records must have an id greater than this one; null for no restriction.
+	 */
+	String idAfter = null;
+	/** The records must have one of these ids; null for no restriction.
+	 */
+	TreeSet<String> ids = null;
+	private final List<Predicate<JSONObject>> predicates = new ArrayList<>();
+
+	/** Parses a query.
+	 *
+	 * @param query the query; null or blank for all records
+	 * @return the filter
+	 * @throws IllegalArgumentException if the query is not supported
+	 */
+	static CqlFilter parse(String query) {
+		CqlFilter filter = new CqlFilter();
+		if (query == null || query.isBlank()) return filter;
+		query = query.strip();
+		Matcher sort = SORT.matcher(" " + query);
+		if (sort.find()) {
+			String index = sort.group(1).toLowerCase(Locale.ROOT);
+			if (!index.equals("id") && !index.equals("id/sort.ascending")) {
+				throw new IllegalArgumentException("unsupported sort: " + sort.group(1));
+			}
+			query = (" " + query).substring(0, sort.start()).strip();
+		}
+		if (!query.isEmpty()) filter.addConjunction(query);
+		return filter;
+	}
+
+	boolean matches(JSONObject record) {
+		for (Predicate<JSONObject> predicate : predicates) {
+			if (!predicate.test(record)) return false;
+		}
+		return true;
+	}
+
+	private void addConjunction(String query) {
+		for (String term : splitAnd(query)) {
+			term = term.strip();
+			if (term.startsWith("(") && closingParenthesis(term, 0) == term.length() - 1) {
+				addConjunction(term.substring(1, term.length() - 1));
+			}
+			else {
+				addTerm(term);
+			}
+		}
+	}
+
+	private void addTerm(String term) {
+		if (term.equalsIgnoreCase("cql.allRecords=1")) return;
+		Matcher m = TERM.matcher(term);
+		if (!m.matches()) throw new IllegalArgumentException("unsupported CQL term: " + term);
+		String field = m.group(1);
+		String op = m.group(2);
+		String value = m.group(3).strip();
+		if (!value.startsWith("\"") && !value.startsWith("(") && value.chars().anyMatch(Character::isWhitespace)) {
+			// most likely an or, a not or a modifier
+			throw new IllegalArgumentException("unsupported CQL term: " + term);
+		}
+		if (op.equals("==") && value.startsWith("(") && value.endsWith(")")) {
+			List<String> values = new ArrayList<>();
+			for (String v : value.substring(1, value.length() - 1).split("(?i)\\s+or\\s+")) {
+				values.add(unquote(v.strip()));
+			}
+			if (field.equals("id")) {
+				restrictIds(values);
+			}
+			else {
+				predicates.add(r -> values.contains(lookup(r, field)));
+			}
+			return;
+		}
+		String v = unquote(value);
+		if (field.equals("id") && op.equals("==") && !v.endsWith("*")) {
+			restrictIds(List.of(v));
+			return;
+		}
+		if (field.equals("id") && op.equals(">")) {
+			if (idAfter == null || v.compareTo(idAfter) > 0) idAfter = v;
+			return;
+		}
+		switch (op) {
+		case "==":
+			predicates.add(r -> matchesValue(lookup(r, field), v, false));
+			break;
+		case "=":
+			predicates.add(r -> matchesValue(lookup(r, field), v, true));
+			break;
+		case "<>":
+			predicates.add(r -> !matchesValue(lookup(r, field), v, false));
+			break;
+		default:
+			predicates.add(r -> {
+				String actual = lookup(r, field);
+				if (actual == null) return false;
+				int c = actual.compareTo(v);
+				switch (op) {
+				case "<": return c < 0;
+				case "<=": return c <= 0;
+				case ">": return c > 0;
+				default: return c >= 0;
+				}
+			});
+		}
+	}
+
+	private void restrictIds(List<String> values) {
+		TreeSet<String> set = new TreeSet<>(values);
+		if (ids == null) ids = set;
+		else ids.retainAll(set);
+	}
+
+	private static boolean matchesValue(String actual, String value, boolean ignoreCase) {
+		if (actual == null) return false;
+		if (ignoreCase) {
+			actual = actual.toLowerCase(Locale.ROOT);
+			value = value.toLowerCase(Locale.ROOT);
+		}
+		if (value.endsWith("*")) return actual.startsWith(value.substring(0, value.length() - 1));
+		return actual.equals(value);
+	}
+
+	/** Returns the value of a possibly nested field as string or null if there is none.
+	 */
+	private static String lookup(JSONObject record, String field) {
+		Object value = record;
+		for (String key : field.split("\\.")) {
+			if (!(value instanceof JSONObject)) return null;
+			value = ((JSONObject) value).opt(key);
+		}
+		return value == null || value == JSONObject.NULL ? null : value.toString();
+	}
+
+	private static String unquote(String value) {
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length() - 1).replace("\\\"", "\"");
+		}
+		return value;
+	}
+
+	/** Splits a query at the ands that are neither quoted nor in parentheses.
+	 */
+	private static List<String> splitAnd(String query) {
+		List<String> terms = new ArrayList<>();
+		int depth = 0;
+		boolean quoted = false;
+		int start = 0;
+		Matcher and = AND.matcher(query);
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == '\\' && quoted) {
+				i++;
+			}
+			else if (c == '"') {
+				quoted = !quoted;
+			}
+			else if (!quoted && c == '(') {
+				depth++;
+			}
+			else if (!quoted && c == ')') {
+				depth--;
+			}
+			else if (!quoted && depth == 0 && Character.isWhitespace(c) && and.find(i) && and.start() == i) {
+				terms.add(query.substring(start, i));
+				start = and.end();
+				i = start - 1;
+			}
+		}
+		terms.add(query.substring(start));
+		return terms;
+	}
+
+	private static int closingParenthesis(String s, int open) {
+		int depth = 0;
+		boolean quoted = false;
+		for (int i = open; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && quoted) i++;
+			else if (c == '"') quoted = !quoted;
+			else if (!quoted && c == '(') depth++;
+			else if (!quoted && c == ')' && --depth == 0) return i;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,507 @@
+package de.fau.ub.folio.connection.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**A local, in-process stand-in for Okapi with storage-style endpoints, for load and resilience tests.
+ *
+ * The simulator listens on a free port of the loopback interface and serves
+ * <ul>
+ * <li><code>authn/login</code>, which issues tokens that expire after the configured lifetime;
+ *     requests with an unknown or expired token are rejected with 403,</li>
+ * <li>collections with CRUD by id, CQL queries (@see {@code CqlFilter}), <code>limit</code> and
+ *     <code>offset</code>, and optimistic locking by <code>_version</code>, which fails with 409,</li>
+ * <li>synchronous batch endpoints, which store all records of a batch or none,</li>
+ * <li><code>_/proxy/health</code>.</li>
+ * </ul>
+ * By default, there are collections for instances, holdings and items at the paths of
+ * mod-inventory-storage. All data is kept in memory.
+ *
+ * Latency and faults are injected as configured in a {@code SimulatorConfig}.
+ *
+ * The JDK's HTTP server writes headers and body separately, so without TCP_NODELAY, Nagle's algorithm
+ * and delayed acknowledgements add some 40 ms to each response. For latency measurements, start the JVM
+ * with {@code -Dsun.net.httpserver.nodelay=true}; the property applies to all servers of the JVM and is
+ * read once, so the simulator leaves it to the caller.
+ *
+ * Example:
+ * <pre>
+ * SimulatorConfig config = new SimulatorConfig();
+ * config.setLatency(Duration.ofMillis(20), Duration.ofMillis(400));
+ * config.setThrottleRate(0.01);
+ * try (OkapiSimulator simulator = new OkapiSimulator(config)) {
+ *     OkapiConnection okapi = new OkapiConnection(simulator.uri(), "diku", new FixedCredentialsTokenProvider("diku_admin", null, "admin".toCharArray()));
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class OkapiSimulator implements Closeable {
+
+	private static final String JSON = "application/json";
+	private static final String TEXT = "text/plain";
+	private static final int MAX_COUNT_AHEAD = 1000;
+
+	private static class Collection {
+		final String key;
+		final ConcurrentSkipListMap<String, JSONObject> records = new ConcurrentSkipListMap<>();
+
+		Collection(String key) {
+			this.key = key;
+		}
+	}
+
+	/** Ends the handling of a request with a response.
+	 */
+	private static class Reply extends Exception {
+		private static final long serialVersionUID = -4417316245087592930L;
+		final int code;
+		final String message;
+
+		Reply(int code, String message) {
+			super(null, null, false, false);
+			this.code = code;
+			this.message = message;
+		}
+	}
+
+	private final SimulatorConfig config;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random;
+	private final Map<String, Collection> collections = new ConcurrentHashMap<>();
+	private final Map<String, Collection> batchEndpoints = new ConcurrentHashMap<>();
+	private final Map<String, Long> tokens = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong faults = new AtomicLong();
+
+	/** Starts a simulator.
+	 *
+	 * @param config the configuration
+	 * @throws IOException if the server cannot be started
+	 */
+	public OkapiSimulator(SimulatorConfig config) throws IOException {
+		super();
+		this.config = config;
+		this.random = config.getSeed() == null ? new Random() : new Random(config.getSeed());
+		addCollection("instance-storage/instances", "instances", "instance-storage/batch/synchronous");
+		addCollection("holdings-storage/holdings", "holdingsRecords", "holdings-storage/batch/synchronous");
+		addCollection("item-storage/items", "items", "item-storage/batch/synchronous");
+		this.executor = Executors.newFixedThreadPool(config.getThreads(), r -> {
+			Thread t = new Thread(r, "okapi-simulator");
+			t.setDaemon(true);
+			return t;
+		});
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.server.setExecutor(executor);
+		this.server.createContext("/", this::handle);
+		this.server.start();
+	}
+
+	/** Returns the base URI of the simulator.
+	 *
+	 * @return the URI, ending with a slash
+	 */
+	public URI uri() {
+		return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+	}
+
+	/** Adds a collection.
+	 *
+	 * @param path the path of the collection, e.g. "instance-storage/instances"
+	 * @param collectionKey the key of the record array, e.g. "instances"
+	 * @param batchPath the path of the synchronous batch endpoint or null if there is none
+	 */
+	public void addCollection(String path, String collectionKey, String batchPath) {
+		Collection collection = new Collection(collectionKey);
+		collections.put(path, collection);
+		if (batchPath != null) batchEndpoints.put(batchPath, collection);
+	}
+
+	/** Stores a record directly, bypassing HTTP, latency and faults, e.g. for test data.
+	 *
+	 * @param path the path of the collection
+	 * @param record the record; an id and a version are added if missing
+	 */
+	public void put(String path, JSONObject record) {
+		Collection collection = collection(path);
+		if (!record.has("id")) record.put("id", UUID.randomUUID().toString());
+		if (!record.has("_version")) record.put("_version", 1);
+		collection.records.put(record.getString("id"), record);
+	}
+
+	/** Returns a stored record.
+	 *
+	 * @param path the path of the collection
+	 * @param id the id of the record
+	 * @return the record or null
+	 */
+	public JSONObject get(String path, String id) {
+		return collection(path).records.get(id);
+	}
+
+	/** Returns the number of records in a collection.
+	 *
+	 * @param path the path of the collection
+	 * @return the number of records
+	 */
+	public int size(String path) {
+		return collection(path).records.size();
+	}
+
+	/** Returns the number of requests received so far.
+	 *
+	 * @return the number of requests
+	 */
+	public long requestCount() {
+		return requests.get();
+	}
+
+	/** Returns the number of faults injected so far.
+	 *
+	 * @return the number of faults
+	 */
+	public long faultCount() {
+		return faults.get();
+	}
+
+	/** Stops the simulator.
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private Collection collection(String path) {
+		Collection collection = collections.get(path);
+		if (collection == null) throw new IllegalArgumentException("no collection at " + path);
+		return collection;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			String path = exchange.getRequestURI().getPath();
+			if (path.startsWith("/")) path = path.substring(1);
+			delay();
+			try {
+				if (path.equals("_/proxy/health")) {
+					send(exchange, 200, JSON, "[]");
+					return;
+				}
+				String tenant = exchange.getRequestHeaders().getFirst("X-Okapi-Tenant");
+				if (!config.getTenant().equals(tenant)) throw new Reply(400, "No such Tenant " + tenant);
+				if (path.equals("authn/login")) {
+					login(exchange);
+					return;
+				}
+				checkToken(exchange);
+				if (injectFault(exchange)) return;
+				route(exchange, path);
+			} catch (Reply reply) {
+				send(exchange, reply.code, TEXT, reply.message);
+			}
+		} catch (InterruptedException e) {
+			// the simulator is closing
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void login(HttpExchange exchange) throws IOException, Reply, InterruptedException {
+		JSONObject credentials = readJson(exchange);
+		String username = credentials.optString("username");
+		String password = config.getUsers().get(username);
+		if (password == null || !password.equals(credentials.optString("password"))) {
+			throw new Reply(422, "Password does not match");
+		}
+		String token = UUID.randomUUID().toString();
+		tokens.put(token, System.nanoTime() + config.getTokenLifetime().toNanos());
+		exchange.getResponseHeaders().add("x-okapi-token", token);
+		send(exchange, 201, JSON, new JSONObject().put("username", username).toString());
+	}
+
+	private void checkToken(HttpExchange exchange) throws Reply {
+		String token = exchange.getRequestHeaders().getFirst("X-Okapi-Token");
+		Long expiry = token == null ? null : tokens.get(token);
+		if (expiry == null) throw new Reply(403, "Token missing, access requires permission");
+		if (expiry - System.nanoTime() < 0) {
+			tokens.remove(token);
+			throw new Reply(403, "Token expired");
+		}
+	}
+
+	/** Injects a fault according to the configuration.
+	 *
+	 * @return true if the request has been answered
+	 */
+	private boolean injectFault(HttpExchange exchange) throws IOException, Reply, InterruptedException {
+		if (chance(config.getResetRate())) {
+			faults.incrementAndGet();
+			// closing the exchange without a response drops the connection
+			return true;
+		}
+		if (chance(config.getForbiddenRate())) {
+			faults.incrementAndGet();
+			throw new Reply(403, "Access requires permission (injected)");
+		}
+		if (chance(config.getThrottleRate())) {
+			faults.incrementAndGet();
+			exchange.getResponseHeaders().add("Retry-After", "1");
+			throw new Reply(429, "Too Many Requests (injected)");
+		}
+		if (chance(config.getServerErrorRate())) {
+			faults.incrementAndGet();
+			int[] codes = {500, 502, 503};
+			throw new Reply(codes[random.nextInt(codes.length)], "Server error (injected)");
+		}
+		return false;
+	}
+
+	private void route(HttpExchange exchange, String path) throws IOException, Reply, InterruptedException {
+		String method = exchange.getRequestMethod();
+		Collection batch = batchEndpoints.get(path);
+		if (batch != null) {
+			if (!method.equals("POST")) throw new Reply(405, "Method not allowed");
+			postBatch(exchange, batch);
+			return;
+		}
+		Collection collection = collections.get(path);
+		if (collection != null) {
+			switch (method) {
+			case "GET":
+				search(exchange, collection);
+				return;
+			case "POST":
+				create(exchange, collection);
+				return;
+			default:
+				throw new Reply(405, "Method not allowed");
+			}
+		}
+		int slash = path.lastIndexOf('/');
+		collection = slash < 0 ? null : collections.get(path.substring(0, slash));
+		if (collection == null) throw new Reply(404, "No suitable module found for path /" + path);
+		String id = path.substring(slash + 1);
+		switch (method) {
+		case "GET":
+			JSONObject record = collection.records.get(id);
+			if (record == null) throw new Reply(404, "Not found");
+			send(exchange, 200, JSON, record.toString());
+			return;
+		case "PUT":
+			update(exchange, collection, id);
+			return;
+		case "DELETE":
+			if (collection.records.remove(id) == null) throw new Reply(404, "Not found");
+			send(exchange, 204, null, null);
+			return;
+		default:
+			throw new Reply(405, "Method not allowed");
+		}
+	}
+
+	private void search(HttpExchange exchange, Collection collection) throws IOException, Reply, InterruptedException {
+		Map<String, String> parameters = parameters(exchange);
+		int limit = intParameter(parameters, "limit", 10);
+		int offset = intParameter(parameters, "offset", 0);
+		CqlFilter filter;
+		try {
+			filter = CqlFilter.parse(parameters.get("query"));
+		} catch (IllegalArgumentException e) {
+			throw new Reply(400, e.getMessage());
+		}
+		NavigableMap<String, JSONObject> candidates = collection.records;
+		if (filter.idAfter != null) candidates = candidates.tailMap(filter.idAfter, false);
+		Iterable<JSONObject> records;
+		if (filter.ids != null) {
+			List<JSONObject> byId = new ArrayList<>();
+			for (String id : filter.ids) {
+				JSONObject record = candidates.get(id);
+				if (record != null) byId.add(record);
+			}
+			records = byId;
+		}
+		else {
+			records = candidates.values();
+		}
+		JSONArray page = new JSONArray();
+		int total = 0;
+		for (JSONObject record : records) {
+			if (!filter.matches(record)) continue;
+			if (total >= offset && page.length() < limit) page.put(record);
+			total++;
+			// like Okapi, we only estimate large totals
+			if (total > offset + limit + MAX_COUNT_AHEAD) break;
+		}
+		JSONObject result = new JSONObject().put(collection.key, page).put("totalRecords", total);
+		send(exchange, 200, JSON, result.toString());
+	}
+
+	private void create(HttpExchange exchange, Collection collection) throws IOException, Reply, InterruptedException {
+		JSONObject record = readJson(exchange);
+		if (!record.has("id")) record.put("id", UUID.randomUUID().toString());
+		record.put("_version", 1);
+		if (collection.records.putIfAbsent(record.getString("id"), record) != null) {
+			throw new Reply(422, "id value already exists in table: " + record.getString("id"));
+		}
+		send(exchange, 201, JSON, record.toString());
+	}
+
+	private void update(HttpExchange exchange, Collection collection, String id) throws IOException, Reply, InterruptedException {
+		JSONObject record = readJson(exchange);
+		if (!id.equals(record.optString("id", id))) throw new Reply(400, "id in path and body differ");
+		record.put("id", id);
+		synchronized (collection) {
+			JSONObject stored = collection.records.get(id);
+			if (stored == null) throw new Reply(404, "Not found");
+			int version = stored.optInt("_version", 1);
+			if (record.has("_version") && record.optInt("_version") != version) {
+				throw new Reply(409, "Cannot update record " + id + " because it has been changed (optimistic locking): "
+						+ "Stored _version is " + version + ", _version of request is " + record.opt("_version"));
+			}
+			record.put("_version", version + 1);
+			collection.records.put(id, record);
+		}
+		send(exchange, 204, null, null);
+	}
+
+	private void postBatch(HttpExchange exchange, Collection collection) throws IOException, Reply, InterruptedException {
+		boolean upsert = "true".equals(parameters(exchange).get("upsert"));
+		JSONArray array = readJson(exchange).optJSONArray(collection.key);
+		if (array == null) throw new Reply(422, "missing " + collection.key);
+		List<JSONObject> records = new ArrayList<>();
+		for (int i = 0; i < array.length(); i++) {
+			JSONObject record = array.optJSONObject(i);
+			if (record == null) throw new Reply(422, "not a record at index " + i);
+			if (!record.has("id")) record.put("id", UUID.randomUUID().toString());
+			records.add(record);
+		}
+		// all or nothing, like the synchronous batch endpoints of mod-inventory-storage
+		synchronized (collection) {
+			for (JSONObject record : records) {
+				JSONObject stored = collection.records.get(record.getString("id"));
+				if (stored != null && !upsert) {
+					throw new Reply(422, "id value already exists in table: " + record.getString("id"));
+				}
+				if (stored != null && record.has("_version") && record.optInt("_version") != stored.optInt("_version", 1)) {
+					throw new Reply(409, "Cannot update record " + record.getString("id") + " because it has been changed (optimistic locking)");
+				}
+			}
+			for (JSONObject record : records) {
+				JSONObject stored = collection.records.get(record.getString("id"));
+				record.put("_version", stored == null ? 1 : stored.optInt("_version", 1) + 1);
+				collection.records.put(record.getString("id"), record);
+			}
+		}
+		send(exchange, 201, null, null);
+	}
+
+	/** Sleeps for a latency drawn from the log-normal distribution of the configuration.
+	 */
+	private void delay() throws InterruptedException {
+		long median = config.getLatencyMedian().toNanos();
+		if (median <= 0) return;
+		// z of the 99th percentile of the standard normal distribution
+		double sigma = Math.log((double) config.getLatencyP99().toNanos() / median) / 2.3263;
+		double gaussian;
+		synchronized (random) {
+			gaussian = random.nextGaussian();
+		}
+		TimeUnit.NANOSECONDS.sleep((long) (median * Math.exp(sigma * gaussian)));
+	}
+
+	private boolean chance(double rate) {
+		if (rate <= 0) return false;
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	private void send(HttpExchange exchange, int code, String contentType, String body) throws IOException, InterruptedException {
+		if (body == null) {
+			exchange.sendResponseHeaders(code, -1);
+			return;
+		}
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", contentType);
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		if (code < 300 && chance(config.getSlowBodyRate())) {
+			faults.incrementAndGet();
+			// dribble the body in chunks, ten per second
+			int chunk = Math.max(1, config.getSlowBodyBytesPerSecond() / 10);
+			for (int offset = 0; offset < bytes.length; offset += chunk) {
+				out.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+				out.flush();
+				Thread.sleep(100);
+			}
+		}
+		else {
+			out.write(bytes);
+		}
+	}
+
+	private static JSONObject readJson(HttpExchange exchange) throws IOException, Reply {
+		try {
+			return new JSONObject(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+		} catch (JSONException e) {
+			throw new Reply(400, "Invalid JSON: " + e.getMessage());
+		}
+	}
+
+	private static Map<String, String> parameters(HttpExchange exchange) {
+		Map<String, String> parameters = new HashMap<>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) return parameters;
+		for (String parameter : query.split("&")) {
+			int eq = parameter.indexOf('=');
+			String key = eq < 0 ? parameter : parameter.substring(0, eq);
+			String value = eq < 0 ? "" : parameter.substring(eq + 1);
+			parameters.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+
+	private static int intParameter(Map<String, String> parameters, String name, int defaultValue) throws Reply {
+		String value = parameters.get(name);
+		if (value == null) return defaultValue;
+		try {
+			int i = Integer.parseInt(value);
+			if (i < 0) throw new NumberFormatException();
+			return i;
+		} catch (NumberFormatException e) {
+			throw new Reply(400, "Invalid " + name + ": " + value);
+		}
+	}
+
+}
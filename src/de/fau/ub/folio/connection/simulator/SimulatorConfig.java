@@ -0,0 +1,241 @@
+package de.fau.ub.folio.connection.simulator;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**The behaviour of an {@code OkapiSimulator}: tenant, users, token lifetime, latency and faults.
+ *
+ * Latency follows a log-normal distribution given by its median and its 99th percentile, which
+ * resembles the long tail of a loaded server. Faults are given as the share of requests they
+ * affect; the checks are made independently for each request in the order reset, 403, 429, 5xx.
+ * Login and health checks are subject to latency, but not to faults.
+ *
+ * The configuration may also be read from properties, @see {@code fromProperties()}.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class SimulatorConfig {
+
+	private String tenant = "diku";
+	private final Map<String, String> users = new LinkedHashMap<>();
+	private Duration tokenLifetime = Duration.ofMinutes(10);
+	private Duration latencyMedian = Duration.ZERO;
+	private Duration latencyP99 = Duration.ZERO;
+	private double resetRate = 0;
+	private double forbiddenRate = 0;
+	private double throttleRate = 0;
+	private double serverErrorRate = 0;
+	private double slowBodyRate = 0;
+	private int slowBodyBytesPerSecond = 16 * 1024;
+	private int threads = 64;
+	private Long seed = null;
+
+	public SimulatorConfig() {
+		super();
+		users.put("diku_admin", "admin");
+	}
+
+	/** Reads a configuration from properties. Missing properties keep their defaults.
+	 *
+	 * <pre>
+	 * tenant=diku
+	 * users=diku_admin:admin,other:secret
+	 * token.lifetime=PT10M
+	 * latency.median=PT0.02S
+	 * latency.p99=PT0.5S
+	 * rate.reset=0.001
+	 * rate.forbidden=0.001
+	 * rate.throttle=0.01
+	 * rate.serverError=0.005
+	 * rate.slowBody=0.01
+	 * slowBody.bytesPerSecond=16384
+	 * threads=64
+	 * seed=42
+	 * </pre>
+	 *
+	 * @param properties the properties
+	 * @return the configuration
+	 */
+	public static SimulatorConfig fromProperties(Properties properties) {
+		SimulatorConfig config = new SimulatorConfig();
+		String value;
+		if ((value = properties.getProperty("tenant")) != null) config.setTenant(value);
+		if ((value = properties.getProperty("users")) != null) {
+			config.users.clear();
+			for (String user : value.split(",")) {
+				int colon = user.indexOf(':');
+				if (colon < 0) throw new IllegalArgumentException("expected user:password, found '" + user + "'");
+				config.addUser(user.substring(0, colon).strip(), user.substring(colon + 1).strip());
+			}
+		}
+		if ((value = properties.getProperty("token.lifetime")) != null) config.setTokenLifetime(Duration.parse(value));
+		Duration median = config.latencyMedian;
+		Duration p99 = config.latencyP99;
+		if ((value = properties.getProperty("latency.median")) != null) median = Duration.parse(value);
+		if ((value = properties.getProperty("latency.p99")) != null) p99 = Duration.parse(value);
+		config.setLatency(median, p99.compareTo(median) < 0 ? median : p99);
+		if ((value = properties.getProperty("rate.reset")) != null) config.setResetRate(Double.parseDouble(value));
+		if ((value = properties.getProperty("rate.forbidden")) != null) config.setForbiddenRate(Double.parseDouble(value));
+		if ((value = properties.getProperty("rate.throttle")) != null) config.setThrottleRate(Double.parseDouble(value));
+		if ((value = properties.getProperty("rate.serverError")) != null) config.setServerErrorRate(Double.parseDouble(value));
+		if ((value = properties.getProperty("rate.slowBody")) != null) config.setSlowBodyRate(Double.parseDouble(value));
+		if ((value = properties.getProperty("slowBody.bytesPerSecond")) != null) config.setSlowBodyBytesPerSecond(Integer.parseInt(value));
+		if ((value = properties.getProperty("threads")) != null) config.setThreads(Integer.parseInt(value));
+		if ((value = properties.getProperty("seed")) != null) config.setSeed(Long.parseLong(value));
+		return config;
+	}
+
+	public String getTenant() {
+		return tenant;
+	}
+
+	/** Sets the only tenant the simulator accepts.
+	 *
+	 * @param tenant the tenant; defaults to "diku"
+	 */
+	public void setTenant(String tenant) {
+		this.tenant = tenant;
+	}
+
+	public Map<String, String> getUsers() {
+		return users;
+	}
+
+	/** Adds a user who may log in. By default, there is a user "diku_admin" with password "admin".
+	 *
+	 * @param username the user name
+	 * @param password the password
+	 */
+	public void addUser(String username, String password) {
+		users.put(username, password);
+	}
+
+	public Duration getTokenLifetime() {
+		return tokenLifetime;
+	}
+
+	/** Sets the time after which a token is rejected with 403.
+	 *
+	 * @param tokenLifetime the lifetime; defaults to 10 minutes
+	 */
+	public void setTokenLifetime(Duration tokenLifetime) {
+		this.tokenLifetime = tokenLifetime;
+	}
+
+	public Duration getLatencyMedian() {
+		return latencyMedian;
+	}
+
+	public Duration getLatencyP99() {
+		return latencyP99;
+	}
+
+	/** Sets the latency distribution.
+	 *
+	 * @param median the median latency; zero for no latency (default)
+	 * @param p99 the 99th percentile, which must not be smaller than the median
+	 */
+	public void setLatency(Duration median, Duration p99) {
+		if (p99.compareTo(median) < 0) throw new IllegalArgumentException("99th percentile must not be smaller than the median");
+		this.latencyMedian = median;
+		this.latencyP99 = p99;
+	}
+
+	public double getResetRate() {
+		return resetRate;
+	}
+
+	/** Sets the share of requests whose connection is closed without a response.
+	 */
+	public void setResetRate(double resetRate) {
+		this.resetRate = checkRate(resetRate);
+	}
+
+	public double getForbiddenRate() {
+		return forbiddenRate;
+	}
+
+	/** Sets the share of requests that are rejected with 403 as if the token had expired.
+	 */
+	public void setForbiddenRate(double forbiddenRate) {
+		this.forbiddenRate = checkRate(forbiddenRate);
+	}
+
+	public double getThrottleRate() {
+		return throttleRate;
+	}
+
+	/** Sets the share of requests that are rejected with 429 Too Many Requests.
+	 */
+	public void setThrottleRate(double throttleRate) {
+		this.throttleRate = checkRate(throttleRate);
+	}
+
+	public double getServerErrorRate() {
+		return serverErrorRate;
+	}
+
+	/** Sets the share of requests that fail with 500, 502 or 503.
+	 */
+	public void setServerErrorRate(double serverErrorRate) {
+		this.serverErrorRate = checkRate(serverErrorRate);
+	}
+
+	public double getSlowBodyRate() {
+		return slowBodyRate;
+	}
+
+	/** Sets the share of responses whose body is sent slowly, @see {@code setSlowBodyBytesPerSecond()}.
+	 */
+	public void setSlowBodyRate(double slowBodyRate) {
+		this.slowBodyRate = checkRate(slowBodyRate);
+	}
+
+	public int getSlowBodyBytesPerSecond() {
+		return slowBodyBytesPerSecond;
+	}
+
+	/** Sets the rate at which slow bodies are sent.
+	 *
+	 * @param slowBodyBytesPerSecond the rate; defaults to 16 KB per second
+	 */
+	public void setSlowBodyBytesPerSecond(int slowBodyBytesPerSecond) {
+		if (slowBodyBytesPerSecond < 1) throw new IllegalArgumentException("rate must be positive");
+		this.slowBodyBytesPerSecond = slowBodyBytesPerSecond;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/** Sets the number of requests the simulator handles at once.
+	 *
+	 * @param threads the number of threads; defaults to 64
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+		this.threads = threads;
+	}
+
+	public Long getSeed() {
+		return seed;
+	}
+
+	/** Sets the seed for latency and faults.
+	 * Note that with concurrent requests the order in which the random numbers are drawn varies anyway.
+	 *
+	 * @param seed the seed or null for a random seed (default)
+	 */
+	public void setSeed(Long seed) {
+		this.seed = seed;
+	}
+
+	private static double checkRate(double rate) {
+		if (rate < 0 || rate > 1) throw new IllegalArgumentException("rate must be between 0 and 1");
+		return rate;
+	}
+
+}
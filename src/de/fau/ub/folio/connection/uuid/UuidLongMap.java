@@ -0,0 +1,118 @@
+package de.fau.ub.folio.connection.uuid;
+
+import java.util.UUID;
+
+/**A compact map from UUIDs to long values, e.g. record versions or file offsets.
+ *
+ * Each entry takes 24 bytes in an open-addressed table, see {@code UuidSet}.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class UuidLongMap extends UuidTable {
+
+	/** Receives the entries of the map.
+	 */
+	public interface EntryConsumer {
+		public void accept(long hi, long lo, long value);
+	}
+
+	private long nilValue;
+
+	/** Creates an empty map on the heap.
+	 */
+	public UuidLongMap() {
+		this(16, 0.75f, false);
+	}
+
+	/** Creates an empty map.
+	 *
+	 * @param expectedSize the number of entries the map should hold without growing
+	 * @param loadFactor the maximum fill ratio of the table before it grows, e.g. 0.75
+	 * @param offHeap whether to keep the table in a direct buffer outside the heap
+	 */
+	public UuidLongMap(int expectedSize, float loadFactor, boolean offHeap) {
+		super(3, expectedSize, loadFactor, offHeap);
+	}
+
+	/** Associates a value with a UUID.
+	 *
+	 * @param hi the most significant bits
+	 * @param lo the least significant bits
+	 * @param value the value
+	 */
+	public void put(long hi, long lo, long value) {
+		if (hi == 0 && lo == 0) {
+			containsNil = true;
+			nilValue = value;
+			return;
+		}
+		int slot = find(hi, lo);
+		if (slot < 0) slot = insert(-slot - 1, hi, lo);
+		table.put(slot * 3 + 2, value);
+	}
+
+	public void put(UUID uuid, long value) {
+		put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), value);
+	}
+
+	public void put(CharSequence uuid, long value) {
+		put(Uuids.hi(uuid), Uuids.lo(uuid), value);
+	}
+
+	/** Returns the value associated with a UUID.
+	 *
+	 * @param hi the most significant bits
+	 * @param lo the least significant bits
+	 * @param defaultValue the value to return if there is no entry for the UUID
+	 * @return the value
+	 */
+	public long get(long hi, long lo, long defaultValue) {
+		if (hi == 0 && lo == 0) return containsNil ? nilValue : defaultValue;
+		int slot = find(hi, lo);
+		return slot < 0 ? defaultValue : table.get(slot * 3 + 2);
+	}
+
+	public long get(UUID uuid, long defaultValue) {
+		return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), defaultValue);
+	}
+
+	public long get(CharSequence uuid, long defaultValue) {
+		return get(Uuids.hi(uuid), Uuids.lo(uuid), defaultValue);
+	}
+
+	public boolean containsKey(long hi, long lo) {
+		if (hi == 0 && lo == 0) return containsNil;
+		return find(hi, lo) >= 0;
+	}
+
+	/** Removes the entry for a UUID.
+	 *
+	 * @param hi the most significant bits
+	 * @param lo the least significant bits
+	 * @return true if there was an entry
+	 */
+	public boolean remove(long hi, long lo) {
+		if (hi == 0 && lo == 0) {
+			boolean removed = containsNil;
+			containsNil = false;
+			return removed;
+		}
+		int slot = find(hi, lo);
+		if (slot < 0) return false;
+		delete(slot);
+		return true;
+	}
+
+	/** Passes all entries to a consumer. The map must not be modified meanwhile.
+	 *
+	 * @param consumer the consumer
+	 */
+	public void forEach(EntryConsumer consumer) {
+		if (containsNil) consumer.accept(0, 0, nilValue);
+		forEachSlot((slot, hi, lo) -> consumer.accept(hi, lo, table.get(slot * 3 + 2)));
+	}
+
+}
@@ -0,0 +1,120 @@
+package de.fau.ub.folio.connection.uuid;
+
+import java.util.UUID;
+
+/**A compact set of UUIDs, e.g. for tracking the ids of millions of records.
+ *
+ * Each UUID takes 16 bytes in an open-addressed table instead of the 100+ bytes of a
+ * {@code String} in a {@code HashSet}. With the default load factor of 0.75, 20 million
+ * ids fit into 512 MB; the table can be kept off-heap so that it does not burden the
+ * garbage collector.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class UuidSet extends UuidTable implements Uuids.UuidConsumer {
+
+	/** Creates an empty set on the heap.
+	 */
+	public UuidSet() {
+		this(16, 0.75f, false);
+	}
+
+	/** Creates an empty set.
+	 *
+	 * @param expectedSize the number of UUIDs the set should hold without growing
+	 * @param loadFactor the maximum fill ratio of the table before it grows, e.g. 0.75
+	 * @param offHeap whether to keep the table in a direct buffer outside the heap
+	 */
+	public UuidSet(int expectedSize, float loadFactor, boolean offHeap) {
+		super(2, expectedSize, loadFactor, offHeap);
+	}
+
+	/** Adds a UUID.
+	 *
+	 * @param hi the most significant bits
+	 * @param lo the least significant bits
+	 * @return true if the UUID was not yet in the set
+	 */
+	public boolean add(long hi, long lo) {
+		if (hi == 0 && lo == 0) {
+			boolean added = !containsNil;
+			containsNil = true;
+			return added;
+		}
+		int slot = find(hi, lo);
+		if (slot >= 0) return false;
+		insert(-slot - 1, hi, lo);
+		return true;
+	}
+
+	public boolean add(UUID uuid) {
+		return add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	public boolean add(CharSequence uuid) {
+		return add(Uuids.hi(uuid), Uuids.lo(uuid));
+	}
+
+	@Override
+	public void accept(long hi, long lo) {
+		add(hi, lo);
+	}
+
+	/** Checks whether the set contains a UUID.
+	 *
+	 * @param hi the most significant bits
+	 * @param lo the least significant bits
+	 * @return true if the UUID is in the set
+	 */
+	public boolean contains(long hi, long lo) {
+		if (hi == 0 && lo == 0) return containsNil;
+		return find(hi, lo) >= 0;
+	}
+
+	public boolean contains(UUID uuid) {
+		return contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	public boolean contains(CharSequence uuid) {
+		return contains(Uuids.hi(uuid), Uuids.lo(uuid));
+	}
+
+	/** Removes a UUID.
+	 *
+	 * @param hi the most significant bits
+	 * @param lo the least significant bits
+	 * @return true if the UUID was in the set
+	 */
+	public boolean remove(long hi, long lo) {
+		if (hi == 0 && lo == 0) {
+			boolean removed = containsNil;
+			containsNil = false;
+			return removed;
+		}
+		int slot = find(hi, lo);
+		if (slot < 0) return false;
+		delete(slot);
+		return true;
+	}
+
+	public boolean remove(UUID uuid) {
+		return remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	public boolean remove(CharSequence uuid) {
+		return remove(Uuids.hi(uuid), Uuids.lo(uuid));
+	}
+
+	/** Passes all UUIDs to a consumer. The set must not be modified meanwhile.
+	 *
+	 * @param consumer the consumer
+	 */
+	public void forEach(Uuids.UuidConsumer consumer) {
+		if (containsNil) consumer.accept(0, 0);
+		forEachSlot((slot, hi, lo) -> consumer.accept(hi, lo));
+	}
+
+}
@@ -0,0 +1,180 @@
+package de.fau.ub.folio.connection.uuid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**Base of the UUID collections: an open-addressed hash table of UUIDs stored as pairs of longs.
+ *
+ * Each slot takes {@code stride} longs: the two halves of the UUID, optionally followed by a value.
+ * The slots are kept in one {@code LongBuffer}, either on the heap or off-heap in a direct buffer.
+ * Collisions are resolved by linear probing; removal shifts subsequent entries back, so
+ * no tombstones are needed. The nil UUID marks free slots and is therefore kept separately.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+abstract class UuidTable {
+
+	private static final int MIN_CAPACITY = 16;
+	/** a direct buffer is limited to Integer.MAX_VALUE bytes */
+	private static final long MAX_DIRECT_LONGS = Integer.MAX_VALUE / Long.BYTES;
+
+	private final int stride;
+	private final boolean offHeap;
+	private final float loadFactor;
+	protected LongBuffer table;
+	protected int capacity;
+	private int mask;
+	private int size = 0;
+	protected boolean containsNil = false;
+
+	UuidTable(int stride, int expectedSize, float loadFactor, boolean offHeap) {
+		if (loadFactor <= 0 || loadFactor >= 1) throw new IllegalArgumentException("load factor must be between 0 and 1");
+		this.stride = stride;
+		this.offHeap = offHeap;
+		this.loadFactor = loadFactor;
+		allocate(capacityFor(expectedSize));
+	}
+
+	private int capacityFor(long size) {
+		long needed = Math.max(MIN_CAPACITY, (long) Math.ceil(size / loadFactor));
+		long capacity = Long.highestOneBit(needed - 1) << 1;
+		if (capacity * stride > (offHeap ? MAX_DIRECT_LONGS : Integer.MAX_VALUE - 8)) {
+			throw new IllegalStateException("UUID table cannot hold " + size + " entries");
+		}
+		return (int) capacity;
+	}
+
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		int longs = capacity * stride;
+		this.table = offHeap ? ByteBuffer.allocateDirect(longs * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer() : LongBuffer.allocate(longs);
+	}
+
+	/** Returns the number of UUIDs in the table.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size + (containsNil ? 1 : 0);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** Removes all UUIDs, keeping the capacity.
+	 */
+	public void clear() {
+		for (int i = 0; i < table.capacity(); i++) table.put(i, 0);
+		size = 0;
+		containsNil = false;
+	}
+
+	/** Returns the approximate number of bytes used by the table.
+	 *
+	 * @return the number of bytes
+	 */
+	public long memoryUsage() {
+		return (long) table.capacity() * Long.BYTES;
+	}
+
+	private static int hash(long hi, long lo) {
+		long h = hi ^ lo;
+		// murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	/** Finds the slot of a UUID.
+	 *
+	 * @return the index of the slot if found, otherwise -(index of the free slot) - 1
+	 */
+	protected int find(long hi, long lo) {
+		int slot = hash(hi, lo) & mask;
+		while (true) {
+			int i = slot * stride;
+			long h = table.get(i);
+			long l = table.get(i + 1);
+			if (h == hi && l == lo) return slot;
+			if (h == 0 && l == 0) return -slot - 1;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/** Inserts a UUID into a free slot found by {@code find()}, growing the table if necessary.
+	 *
+	 * @return the slot of the UUID
+	 */
+	protected int insert(int freeSlot, long hi, long lo) {
+		if (size + 1 > capacity * loadFactor) {
+			grow();
+			freeSlot = -find(hi, lo) - 1;
+		}
+		int i = freeSlot * stride;
+		table.put(i, hi);
+		table.put(i + 1, lo);
+		size++;
+		return freeSlot;
+	}
+
+	/** Removes the UUID in a slot and moves following entries of the probe sequence back.
+	 */
+	protected void delete(int slot) {
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (true) {
+			int i = next * stride;
+			long h = table.get(i);
+			long l = table.get(i + 1);
+			if (h == 0 && l == 0) break;
+			int home = hash(h, l) & mask;
+			// move the entry into the gap if its home slot is not between gap and next (cyclically)
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				for (int k = 0; k < stride; k++) table.put(gap * stride + k, table.get(i + k));
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		for (int k = 0; k < stride; k++) table.put(gap * stride + k, 0);
+		size--;
+	}
+
+	private void grow() {
+		LongBuffer old = this.table;
+		int oldCapacity = this.capacity;
+		allocate(capacityFor((long) (capacity * 2 * loadFactor)));
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			int i = slot * stride;
+			long h = old.get(i);
+			long l = old.get(i + 1);
+			if (h == 0 && l == 0) continue;
+			int target = -find(h, l) - 1;
+			for (int k = 0; k < stride; k++) table.put(target * stride + k, old.get(i + k));
+		}
+	}
+
+	/** Passes all UUIDs, except the nil UUID, with their slot to a consumer.
+	 */
+	protected void forEachSlot(SlotConsumer consumer) {
+		for (int slot = 0; slot < capacity; slot++) {
+			int i = slot * stride;
+			long h = table.get(i);
+			long l = table.get(i + 1);
+			if (h != 0 || l != 0) consumer.accept(slot, h, l);
+		}
+	}
+
+	protected interface SlotConsumer {
+		void accept(int slot, long hi, long lo);
+	}
+
+}
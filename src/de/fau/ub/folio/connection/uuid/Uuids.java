@@ -0,0 +1,133 @@
+package de.fau.ub.folio.connection.uuid;
+
+import java.nio.charset.StandardCharsets;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.CqlPager;
+import de.fau.ub.folio.connection.OkapiConnection;
+import de.fau.ub.folio.connection.RecordIdScanner;
+
+/**Helpers for handling UUIDs as pairs of longs.
+ *
+ * A UUID is split into its most significant 64 bits ("hi") and its least significant 64 bits ("lo"),
+ * just like {@code java.util.UUID}, but without creating an object.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public final class Uuids {
+
+	private Uuids() {
+	}
+
+	/** Receives UUIDs as pairs of longs.
+	 */
+	public interface UuidConsumer {
+		public void accept(long hi, long lo);
+	}
+
+	/** Parses the most significant bits of a UUID in canonical form (8-4-4-4-12 hex digits).
+	 *
+	 * @param uuid the UUID
+	 * @return the most significant bits
+	 * @throws IllegalArgumentException if the string is not a UUID
+	 */
+	public static long hi(CharSequence uuid) {
+		checkFormat(uuid);
+		return (hex(uuid, 0, 8) << 32) | (hex(uuid, 9, 13) << 16) | hex(uuid, 14, 18);
+	}
+
+	/** Parses the least significant bits of a UUID in canonical form.
+	 *
+	 * @param uuid the UUID
+	 * @return the least significant bits
+	 * @throws IllegalArgumentException if the string is not a UUID
+	 */
+	public static long lo(CharSequence uuid) {
+		checkFormat(uuid);
+		return (hex(uuid, 19, 23) << 48) | hex(uuid, 24, 36);
+	}
+
+	/** Parses a UUID given as UTF-8 bytes, e.g. a slice of a response body, and passes it on.
+	 *
+	 * @param buffer the buffer
+	 * @param offset the start of the UUID
+	 * @param length the length of the UUID; must be 36
+	 * @param consumer receives the UUID
+	 * @throws IllegalArgumentException if the bytes are not a UUID
+	 */
+	public static void parse(byte[] buffer, int offset, int length, UuidConsumer consumer) {
+		if (length != 36 || buffer[offset + 8] != '-' || buffer[offset + 13] != '-' || buffer[offset + 18] != '-' || buffer[offset + 23] != '-') {
+			throw new IllegalArgumentException("not a UUID: " + new String(buffer, offset, length, StandardCharsets.UTF_8));
+		}
+		long hi = (hex(buffer, offset, 0, 8) << 32) | (hex(buffer, offset, 9, 13) << 16) | hex(buffer, offset, 14, 18);
+		long lo = (hex(buffer, offset, 19, 23) << 48) | hex(buffer, offset, 24, 36);
+		consumer.accept(hi, lo);
+	}
+
+	/** Formats a UUID in canonical form.
+	 *
+	 * @param hi the most significant bits
+	 * @param lo the least significant bits
+	 * @return the UUID string
+	 */
+	public static String toString(long hi, long lo) {
+		return new java.util.UUID(hi, lo).toString();
+	}
+
+	/** Fetches the ids of all records matching a query and adds them to a set.
+	 *
+	 * The ids are extracted directly from the response bodies without parsing the
+	 * records, so that only one page of records is in memory at any time.
+	 *
+	 * @param okapi the connection
+	 * @param path the path of the collection endpoint, e.g. "instance-storage/instances"
+	 * @param collectionKey the key of the record array in the response, e.g. "instances"
+	 * @param query a CQL query without sort clause; null for all records
+	 * @param target the set to add the ids to
+	 * @return the number of records fetched
+	 * @throws ConnectionException if a request failed
+	 */
+	public static long collectIds(OkapiConnection okapi, String path, String collectionKey, String query, UuidSet target) throws ConnectionException {
+		CqlPager pager = new CqlPager(okapi, path, collectionKey, query, 1000);
+		OkapiConnection.Response page;
+		while ((page = pager.next()) != null) {
+			RecordIdScanner.scan(page.body(), collectionKey, (buffer, offset, length) -> parse(buffer, offset, length, target::add));
+		}
+		return pager.recordsSeen();
+	}
+
+	private static void checkFormat(CharSequence uuid) {
+		if (uuid.length() != 36 || uuid.charAt(8) != '-' || uuid.charAt(13) != '-' || uuid.charAt(18) != '-' || uuid.charAt(23) != '-') {
+			throw new IllegalArgumentException("not a UUID: " + uuid);
+		}
+	}
+
+	private static long hex(CharSequence s, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = digit(s.charAt(i));
+			if (digit < 0) throw new IllegalArgumentException("not a UUID: " + s);
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private static long hex(byte[] buffer, int offset, int start, int end) {
+		long value = 0;
+		for (int i = offset + start; i < offset + end; i++) {
+			int digit = digit((char) buffer[i]);
+			if (digit < 0) throw new IllegalArgumentException("not a UUID: " + new String(buffer, offset, 36, StandardCharsets.UTF_8));
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private static int digit(char c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+		return -1;
+	}
+
+}
@@ -0,0 +1,368 @@
+package de.fau.ub.folio.connection.writeBehind;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**An append-only journal of write requests, stored in memory-mapped segment files.
+ *
+ * Each record is stored as its length, a CRC32C checksum and the payload.
+ * A segment ends with a length of -1 or zero-filled space. The position up to which
+ * records have been processed is kept in a checkpoint file, which is replaced atomically.
+ * Segments before the checkpoint are deleted. Where a file cannot be deleted while it is
+ * memory-mapped, as on Windows, the deletion is retried by later commits and on opening.
+ *
+ * On opening, the segments after the checkpoint are scanned for valid records.
+ * A torn record at the end of the last segment, as left by a crash, is skipped
+ * by continuing in a new segment.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+class Journal implements Closeable {
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT = "checkpoint";
+	private static final int HEADER_SIZE = 8;
+	private static final int END_OF_SEGMENT = -1;
+
+	/** A journaled write request together with the journal position after it.
+	 */
+	static class Record {
+		final String method;
+		final String path;
+		final String contentType;
+		final String key;
+		final byte[] body;
+		private long segment;
+		private int end;
+
+		Record(String method, String path, String contentType, String key, byte[] body) {
+			this.method = method;
+			this.path = path;
+			this.contentType = contentType;
+			this.key = key;
+			this.body = body;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final boolean sync;
+	private final Logger logger;
+	private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+	/** segments before the checkpoint that could not be deleted yet */
+	private final Set<Long> staleSegments = new TreeSet<>();
+	private long writeSegment;
+	private int writeOffset;
+	private long readSegment;
+	private int readOffset;
+	private long pending = 0;
+	private boolean closed = false;
+	private IOException failure = null;
+
+	/** Opens or creates a journal.
+	 *
+	 * @param directory the directory of the journal files
+	 * @param segmentSize the size of a segment file in bytes
+	 * @param sync whether appended records are forced to the storage device
+	 * @param logger the logger
+	 * @throws IOException if the journal cannot be opened
+	 */
+	Journal(Path directory, int segmentSize, boolean sync, Logger logger) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		this.logger = logger;
+		Files.createDirectories(directory);
+		recover();
+	}
+
+	/** Reads the checkpoint and determines the end of the journal.
+	 */
+	private void recover() throws IOException {
+		Path checkpoint = directory.resolve(CHECKPOINT);
+		if (Files.exists(checkpoint)) {
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+			readSegment = buf.getLong();
+			readOffset = buf.getInt();
+		}
+		List<Long> numbers = new ArrayList<>();
+		try (Stream<Path> files = Files.list(directory)) {
+			files.map(p -> p.getFileName().toString())
+				.filter(n -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX))
+				.forEach(n -> numbers.add(Long.parseLong(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length()))));
+		}
+		numbers.sort(null);
+		for (long number : numbers) {
+			if (number < readSegment) {
+				Files.delete(segmentPath(number));
+			}
+			else {
+				segments.put(number, map(number));
+			}
+		}
+		if (segments.isEmpty()) {
+			// a fresh journal
+			readOffset = 0;
+			writeSegment = readSegment;
+			writeOffset = 0;
+			segments.put(writeSegment, map(writeSegment));
+			return;
+		}
+		if (!segments.containsKey(readSegment)) {
+			readSegment = segments.firstKey();
+			readOffset = 0;
+		}
+		// count the records that still need to be processed and find the end of the last segment
+		boolean torn = false;
+		for (long number : segments.keySet()) {
+			MappedByteBuffer buffer = segments.get(number);
+			int offset = number == readSegment ? readOffset : 0;
+			while (true) {
+				int length = offset + HEADER_SIZE <= segmentSize ? buffer.getInt(offset) : END_OF_SEGMENT;
+				if (length == 0 || length == END_OF_SEGMENT) break;
+				if (readPayload(buffer, offset, length) == null) {
+					// a torn or corrupted record: nothing after it can be trusted
+					logger.log(Level.WARNING, "skipping corrupted journal data in segment " + number + " at offset " + offset);
+					if (offset + 4 <= segmentSize) buffer.putInt(offset, END_OF_SEGMENT);
+					torn = true;
+					break;
+				}
+				offset += HEADER_SIZE + length;
+				pending++;
+			}
+			writeSegment = number;
+			writeOffset = offset;
+		}
+		if (torn) {
+			// we cannot tell what lies behind a torn record, so we continue in a new segment
+			writeSegment++;
+			writeOffset = 0;
+			segments.put(writeSegment, map(writeSegment));
+		}
+	}
+
+	private Path segmentPath(long number) {
+		return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	private MappedByteBuffer map(long number) throws IOException {
+		try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// the mapping stays valid after closing the channel
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+	}
+
+	/** Appends a record to the journal.
+	 *
+	 * @param record the record
+	 * @throws IOException if the record cannot be written
+	 */
+	synchronized void append(Record record) throws IOException {
+		if (closed) throw new IOException("journal is closed");
+		checkFailure();
+		byte[] payload = encode(record);
+		if (HEADER_SIZE + payload.length > segmentSize) {
+			throw new IllegalArgumentException("record of " + payload.length + " bytes does not fit into a journal segment");
+		}
+		MappedByteBuffer buffer = segments.get(writeSegment);
+		if (writeOffset + HEADER_SIZE + payload.length > segmentSize) {
+			if (writeOffset + 4 <= segmentSize) buffer.putInt(writeOffset, END_OF_SEGMENT);
+			if (sync) buffer.force();
+			writeSegment++;
+			writeOffset = 0;
+			buffer = map(writeSegment);
+			segments.put(writeSegment, buffer);
+		}
+		CRC32C crc = new CRC32C();
+		crc.update(payload);
+		// write the payload first, so that a visible length always belongs to a complete record
+		buffer.put(writeOffset + HEADER_SIZE, payload);
+		buffer.putInt(writeOffset + 4, (int) crc.getValue());
+		buffer.putInt(writeOffset, payload.length);
+		if (sync) buffer.force(writeOffset, HEADER_SIZE + payload.length);
+		writeOffset += HEADER_SIZE + payload.length;
+		pending++;
+		notifyAll();
+	}
+
+	/** Reads the next records, waiting for records if there are none.
+	 *
+	 * Reading does not remove the records from the journal. Only a subsequent
+	 * {@code commit()} marks them as processed.
+	 *
+	 * @param max the maximum number of records to return
+	 * @param timeoutMillis the maximum time to wait for a record
+	 * @return the records, possibly empty
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized List<Record> read(int max, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!closed && readSegment == writeSegment && readOffset == writeOffset) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return List.of();
+			wait(remaining);
+		}
+		List<Record> records = new ArrayList<>();
+		while (!closed && records.size() < max && (readSegment != writeSegment || readOffset != writeOffset)) {
+			MappedByteBuffer buffer = segments.get(readSegment);
+			int length = readOffset + HEADER_SIZE <= segmentSize ? buffer.getInt(readOffset) : END_OF_SEGMENT;
+			if (length == 0 || length == END_OF_SEGMENT) {
+				readSegment = segments.higherKey(readSegment);
+				readOffset = 0;
+				continue;
+			}
+			Record record = decode(readPayload(buffer, readOffset, length));
+			readOffset += HEADER_SIZE + length;
+			record.segment = readSegment;
+			record.end = readOffset;
+			records.add(record);
+		}
+		return records;
+	}
+
+	/** Marks all records up to and including the given one as processed.
+	 *
+	 * The position is persisted, and segments that are no longer needed are deleted.
+	 *
+	 * @param last the last processed record
+	 * @param count the number of processed records
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	synchronized void commit(Record last, int count) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(12);
+		buf.putLong(last.segment).putInt(last.end);
+		Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(buf.flip());
+			if (sync) channel.force(true);
+		}
+		Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		while (segments.firstKey() < last.segment) {
+			staleSegments.add(segments.pollFirstEntry().getKey());
+		}
+		pending -= count;
+		notifyAll();
+		deleteStaleSegments();
+	}
+
+	/** Deletes the segments before the checkpoint. A segment that cannot be deleted,
+	 * e.g. because it is still mapped on Windows, is tried again by the next commit.
+	 */
+	private void deleteStaleSegments() {
+		for (Iterator<Long> i = staleSegments.iterator(); i.hasNext(); ) {
+			long number = i.next();
+			try {
+				Files.deleteIfExists(segmentPath(number));
+				i.remove();
+			} catch (IOException e) {
+				logger.log(Level.DEBUG, "cannot delete journal segment " + number + " yet", e);
+			}
+		}
+	}
+
+	/** Marks the journal as failed: the records can no longer be processed,
+	 * so appending and waiting for the journal to become empty throw the failure.
+	 *
+	 * @param e the cause
+	 */
+	synchronized void fail(IOException e) {
+		failure = e;
+		notifyAll();
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) throw new IOException("write-behind journal in " + directory + " has failed", failure);
+	}
+
+	/** Waits until all records have been committed.
+	 *
+	 * @param timeoutMillis the maximum time to wait
+	 * @return true if all records have been committed
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if the journal has failed
+	 */
+	synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException, IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (pending > 0 && !closed && failure == null) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return false;
+			wait(remaining);
+		}
+		checkFailure();
+		return pending == 0;
+	}
+
+	/** Returns the number of records that have not been committed yet.
+	 */
+	synchronized long pending() {
+		return pending;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		for (MappedByteBuffer buffer : segments.values()) {
+			buffer.force();
+		}
+		notifyAll();
+	}
+
+	private byte[] readPayload(MappedByteBuffer buffer, int offset, int length) {
+		if (length < 0 || offset + HEADER_SIZE + length > segmentSize) return null;
+		byte[] payload = new byte[length];
+		buffer.get(offset + HEADER_SIZE, payload);
+		CRC32C crc = new CRC32C();
+		crc.update(payload);
+		return (int) crc.getValue() == buffer.getInt(offset + 4) ? payload : null;
+	}
+
+	private static byte[] encode(Record record) {
+		byte[][] strings = {
+				record.method.getBytes(StandardCharsets.UTF_8),
+				record.path.getBytes(StandardCharsets.UTF_8),
+				record.contentType == null ? new byte[0] : record.contentType.getBytes(StandardCharsets.UTF_8),
+				record.key == null ? new byte[0] : record.key.getBytes(StandardCharsets.UTF_8)
+		};
+		int size = record.body == null ? 0 : record.body.length;
+		for (byte[] s : strings) size += 4 + s.length;
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		for (byte[] s : strings) buf.putInt(s.length).put(s);
+		if (record.body != null) buf.put(record.body);
+		return buf.array();
+	}
+
+	private static Record decode(byte[] payload) {
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		String[] strings = new String[4];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] s = new byte[buf.getInt()];
+			buf.get(s);
+			strings[i] = new String(s, StandardCharsets.UTF_8);
+		}
+		byte[] body = new byte[buf.remaining()];
+		buf.get(body);
+		return new Record(strings[0], strings[1], strings[2].isEmpty() ? null : strings[2], strings[3].isEmpty() ? null : strings[3], body);
+	}
+
+}
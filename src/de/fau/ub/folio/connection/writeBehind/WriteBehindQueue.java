@@ -0,0 +1,328 @@
+package de.fau.ub.folio.connection.writeBehind;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONObject;
+
+import de.fau.ub.folio.connection.ConnectionException;
+import de.fau.ub.folio.connection.OkapiConnection;
+import de.fau.ub.folio.connection.RequestPriority;
+
+/**Decouples writes to Okapi from the producers of the writes.
+ *
+ * Write requests are appended to a local journal and return immediately.
+ * Background workers drain the journal to Okapi in batches, retrying failed requests
+ * with exponential backoff as long as the failure is temporary (no response, HTTP 429 or 5xx).
+ * Requests that fail permanently are passed to a {@code FailureHandler}.
+ * The journal position is committed after each batch, so that the queue survives
+ * restarts and crashes: requests that have not been committed are sent again after a restart,
+ * ie. delivery is at least once. If the journal position cannot be committed even after retrying,
+ * the queue stops, and appending requests and {@code flush()} throw an {@code IOException}.
+ *
+ * Within a batch, requests are sent in parallel, except for requests to the same record,
+ * which are sent in the order they were appended.
+ *
+ * By default, the journal relies on the operating system for writing the memory-mapped
+ * segment files back to disk, which protects against crashes of the JVM, but not of the
+ * whole system. Use {@code setSync(true)} to force each request to the storage device.
+ *
+ * @author Martin Scholz, Universitätsbibliothek Erlangen-Nürnberg
+ *
+ */
+public class WriteBehindQueue implements Closeable {
+
+	/** Handles requests that failed permanently.
+	 */
+	public interface FailureHandler {
+		public void failed(String method, String path, byte[] body, ConnectionException e);
+	}
+
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final long LINGER_MILLIS = 100;
+	private static final long MIN_BACKOFF_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 60000;
+	private static final int COMMIT_RETRIES = 5;
+
+	private final OkapiConnection okapi;
+	private final Journal journal;
+	private final int workers;
+	private final int batchSize;
+	private final Logger logger;
+	private final ExecutorService executor;
+	private final Thread drainer;
+	private volatile boolean running = true;
+	private FailureHandler failureHandler;
+
+	/** Opens a queue with 4 workers and batches of 100 requests.
+	 *
+	 * @param okapi the connection to send the requests with
+	 * @param directory the directory of the journal; is created if necessary
+	 * @throws IOException if the journal cannot be opened
+	 */
+	public WriteBehindQueue(OkapiConnection okapi, Path directory) throws IOException {
+		this(okapi, directory, 4, 100, false);
+	}
+
+	/** Opens a queue.
+	 *
+	 * @param okapi the connection to send the requests with
+	 * @param directory the directory of the journal; is created if necessary
+	 * @param workers the number of requests sent in parallel
+	 * @param batchSize the maximum number of requests after which the journal position is committed
+	 * @param sync whether each request is forced to the storage device when appended
+	 * @throws IOException if the journal cannot be opened
+	 */
+	public WriteBehindQueue(OkapiConnection okapi, Path directory, int workers, int batchSize, boolean sync) throws IOException {
+		super();
+		if (workers < 1 || batchSize < 1) throw new IllegalArgumentException("workers and batch size must be positive");
+		this.okapi = okapi;
+		this.workers = workers;
+		this.batchSize = batchSize;
+		this.logger = System.getLogger(this.getClass().getCanonicalName());
+		this.journal = new Journal(directory, DEFAULT_SEGMENT_SIZE, sync, logger);
+		this.failureHandler = (method, path, body, e) ->
+			logger.log(Level.ERROR, "dropping " + method + " request for path " + path + " with body '" + new String(body, StandardCharsets.UTF_8) + "'", e);
+		this.executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(() -> {
+				OkapiConnection.setCurrentPriority(RequestPriority.BULK);
+				r.run();
+			}, "okapi-write-behind-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.drainer = new Thread(this::drain, "okapi-write-behind-drainer");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	/** Sets the handler for requests that failed permanently.
+	 *
+	 * @param failureHandler the handler; by default, failed requests are logged
+	 */
+	public void setFailureHandler(FailureHandler failureHandler) {
+		this.failureHandler = failureHandler;
+	}
+
+	/** Queues a post request with a JSON body.
+	 *
+	 * @param path the path of the API endpoint
+	 * @param body the body
+	 * @throws IOException if the request cannot be written to the journal
+	 */
+	public void postJSON(String path, JSONObject body) throws IOException {
+		// a posted record is identified by its id, if any, so that later updates stay in order
+		String id = body.optString("id", null);
+		append("POST", path, OkapiConnection.JSON_MIMETYPE, id == null ? null : recordKey(path, id), body.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Queues a put request with a JSON body.
+	 *
+	 * @param path the path of the API endpoint
+	 * @param body the body
+	 * @throws IOException if the request cannot be written to the journal
+	 */
+	public void putJSON(String path, JSONObject body) throws IOException {
+		append("PUT", path, OkapiConnection.JSON_MIMETYPE, path, body.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Queues a delete request.
+	 *
+	 * @param path the path of the API endpoint
+	 * @throws IOException if the request cannot be written to the journal
+	 */
+	public void delete(String path) throws IOException {
+		append("DELETE", path, null, path, null);
+	}
+
+	/** Queues a request.
+	 *
+	 * @param method the HTTP method: POST, PUT or DELETE
+	 * @param path the path of the API endpoint
+	 * @param contentType the content mime type
+	 * @param key identifies the record the request refers to; requests with the same key are sent
+	 * 		  in the order of appending. May be null.
+	 * @param body the body
+	 * @throws IOException if the request cannot be written to the journal or the queue has stopped
+	 */
+	public void append(String method, String path, String contentType, String key, byte[] body) throws IOException {
+		if (!"POST".equals(method) && !"PUT".equals(method) && !"DELETE".equals(method)) {
+			throw new IllegalArgumentException("unsupported method " + method);
+		}
+		journal.append(new Journal.Record(method, path, contentType, key, body));
+	}
+
+	/** Returns the number of queued requests that have not been sent yet.
+	 *
+	 * @return the number of requests
+	 */
+	public long pending() {
+		return journal.pending();
+	}
+
+	/** Waits until all queued requests have been sent.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @return true if all requests have been sent
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if the queue has stopped because the journal cannot be committed
+	 */
+	public boolean flush(Duration timeout) throws InterruptedException, IOException {
+		return journal.awaitEmpty(timeout.toMillis());
+	}
+
+	/** Stops sending requests and closes the journal.
+	 *
+	 * Requests that have not been sent remain in the journal and will be sent
+	 * when the queue is opened again.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		// wakes up the workers waiting for a retry, so that the drainer does not wait for them
+		executor.shutdownNow();
+		drainer.interrupt();
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		journal.close();
+	}
+
+	private static String recordKey(String path, String id) {
+		return path.endsWith("/") ? path + id : path + '/' + id;
+	}
+
+	/** Reads batches from the journal, sends them and commits them.
+	 */
+	private void drain() {
+		while (running) {
+			try {
+				List<Journal.Record> batch = journal.read(batchSize, LINGER_MILLIS);
+				if (batch.isEmpty()) continue;
+				// requests for the same record go to the same lane and are sent sequentially
+				List<List<Journal.Record>> lanes = new ArrayList<>(workers);
+				for (int i = 0; i < workers; i++) lanes.add(new ArrayList<>());
+				int next = 0;
+				for (Journal.Record record : batch) {
+					int lane = record.key == null ? next++ % workers : Math.floorMod(record.key.hashCode(), workers);
+					lanes.get(lane).add(record);
+				}
+				List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+				for (List<Journal.Record> lane : lanes) {
+					if (lane.isEmpty()) continue;
+					futures.add(CompletableFuture.supplyAsync(() -> lane.stream().allMatch(this::send), executor));
+				}
+				boolean complete = true;
+				for (CompletableFuture<Boolean> future : futures) {
+					// get() rather than join(), as close() interrupts the drainer
+					complete &= future.get();
+				}
+				if (!complete || !commit(batch)) {
+					// we are closing; the batch will be sent again on restart
+					return;
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (ExecutionException e) {
+				logger.log(Level.ERROR, "stopping write-behind queue", e.getCause());
+				journal.fail(new IOException("sending requests failed", e.getCause()));
+				return;
+			}
+		}
+	}
+
+	/** Commits a batch, retrying with backoff. If the journal cannot be committed, it is marked as failed,
+	 * so that producers do not keep appending requests that would never be sent.
+	 *
+	 * @return false if the queue was closed or has failed
+	 */
+	private boolean commit(List<Journal.Record> batch) throws InterruptedException {
+		long backoff = MIN_BACKOFF_MILLIS;
+		for (int i = 0; ; i++) {
+			try {
+				journal.commit(batch.get(batch.size() - 1), batch.size());
+				return true;
+			} catch (IOException e) {
+				if (!running) return false;
+				if (i >= COMMIT_RETRIES) {
+					logger.log(Level.ERROR, "cannot commit write-behind journal, stopping the queue", e);
+					journal.fail(e);
+					return false;
+				}
+				logger.log(Level.WARNING, "cannot commit write-behind journal, retrying in " + backoff + " ms", e);
+				Thread.sleep(backoff);
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+			}
+		}
+	}
+
+	/** Sends a request, retrying as long as the failure is temporary.
+	 *
+	 * @return false if the queue was closed before the request could be sent
+	 */
+	private boolean send(Journal.Record record) {
+		long backoff = MIN_BACKOFF_MILLIS;
+		while (running) {
+			try {
+				OkapiConnection.Response response;
+				switch (record.method) {
+				case "POST":
+					response = okapi.post(record.path, record.contentType, null, record.body);
+					break;
+				case "PUT":
+					response = okapi.put(record.path, record.contentType, null, record.body);
+					break;
+				default:
+					response = okapi.delete(record.path, null, null);
+				}
+				if (response == null) {
+					// okapi keeps rejecting our token, retrying won't help
+					failed(record, new ConnectionException("access denied for path " + record.path, 403));
+				}
+				return true;
+			} catch (ConnectionException e) {
+				int code = e.getHttpCode();
+				if (code != -1 && code != 429 && code < 500) {
+					failed(record, e);
+					return true;
+				}
+				logger.log(Level.WARNING, "retrying " + record.method + " request for path " + record.path + " in " + backoff + " ms");
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e1) {
+					return false;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+			} catch (RuntimeException e) {
+				// e.g. a failed login; this is not temporary, and the drainer must go on with the batch
+				failed(record, new ConnectionException(record.method + " request for path " + record.path + " failed", e));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Passes a request that failed permanently to the failure handler.
+	 */
+	private void failed(Journal.Record record, ConnectionException e) {
+		try {
+			failureHandler.failed(record.method, record.path, record.body, e);
+		} catch (RuntimeException e1) {
+			logger.log(Level.ERROR, "failure handler failed for " + record.method + " request for path " + record.path, e1);
+		}
+	}
+
+}